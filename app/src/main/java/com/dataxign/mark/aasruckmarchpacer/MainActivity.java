@@ -16,6 +16,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
+import android.content.res.Resources;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
@@ -27,6 +28,7 @@ import android.provider.DocumentsContract;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -34,27 +36,44 @@ import android.widget.Toast;
 import androidx.annotation.RequiresApi;
 import androidx.core.app.ActivityCompat;
 
+import com.dataxign.mark.aasruckmarchpacer.functions.Clock;
 import com.dataxign.mark.aasruckmarchpacer.functions.HelperStuff;
+import com.dataxign.mark.aasruckmarchpacer.geo.DegreesToUTM;
 import com.dataxign.mark.aasruckmarchpacer.geo.LocationPoint;
+import com.dataxign.mark.aasruckmarchpacer.geo.MapMatcher;
 import com.dataxign.mark.aasruckmarchpacer.geo.Route;
 import com.dataxign.mark.aasruckmarchpacer.geo.Segment;
+import com.dataxign.mark.aasruckmarchpacer.geo.SnapResult;
 import com.dataxign.mark.aasruckmarchpacer.mdp.DataManager;
 import com.dataxign.mark.aasruckmarchpacer.geo.DataSmoother;
 import com.dataxign.mark.aasruckmarchpacer.mdp.ObanSensor;
+import com.dataxign.mark.aasruckmarchpacer.mdp.Policy;
+import com.dataxign.mark.aasruckmarchpacer.mdp.SquadMonitor;
 
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class MainActivity extends Activity {
 
     private final int UI_UPDATE_TIME_MILLIS = 1000;
     private final int SMOOTHING_INTERVAL_MILLIS = 6000;
+    private final double LOCAL_PROJECTION_MARGIN_METRES = 2000; // Fixes this far outside the route still convert locally
 
     private Handler handler = null;
     private Activity act = this;
 
-    private boolean started = false;
-    private boolean policy_init = false;
-    private boolean route_init = false;
+    // The fix, route, sensor and data manager work runs on the processor thread. Each tick it
+    // publishes a snapshot to latest, which is all the UI and the map read
+    private ScheduledExecutorService processor = null;
+    private final AtomicReference<PacerSnapshot> latest = new AtomicReference<PacerSnapshot>(new PacerSnapshot());
+
+    private boolean started = false; // Processor thread only
+    private final Clock clock = Clock.SYSTEM;
+    private volatile boolean policy_init = false; // Set once a policy has loaded
+    private volatile boolean route_init = false; // Set once a route has loaded
     private boolean device_init = false;
 
     //Widgets for user interface
@@ -63,6 +82,8 @@ public class MainActivity extends Activity {
     private TextView segmentnum, segmenthead, segmentdist;
     private EditText roster_num_input;
     private TextView heart_rate, battery;
+    private CheckBox team_mode;
+    private TextView squad_summary;
     private Button button_start, button_mode, button_pair, button_policy, button_route;
     private MapChart_CustomView map;
     private int mapDisplayMode = 0; //0=Map, 1=Pacing Display
@@ -72,6 +93,8 @@ public class MainActivity extends Activity {
     private MainLocationListener locationListener;
     private Location location;
     private LocationPoint currentLocation;
+    private final SnapResult snap = new SnapResult(); // Reused for every fix
+    private MapMatcher matcher = null;
     private long updateTime = 0, updateInterval = 0, lastSmoothUpdate = 0;
     private DataSmoother moveData;
 
@@ -80,11 +103,12 @@ public class MainActivity extends Activity {
     private int HR; // The subjects current heart rate
     private int Battery; // The current sensor battery
 
-    public ObanSensor sensor;
+    public volatile ObanSensor sensor;
+    public volatile SquadMonitor squad; // Team mode, null when only watching our own sensor
 
     // Data manager
-    public DataManager dm;
-    Route route = null;
+    public volatile DataManager dm;
+    Route route = null; // Processor thread only
 
     // Initialization functions
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
@@ -104,8 +128,20 @@ public class MainActivity extends Activity {
         initUI(); // Grab UI Elements
         initLocations(); // Initialize the Location Elements for using the GPS
 
-        handler = new Handler(); // Initialize the UI manager
-        handler.post(activityUIManager); // Start the system loop
+        handler = new Handler(); // Runs the snapshot renders on the UI thread
+        processor = Executors.newSingleThreadScheduledExecutor();
+        processor.scheduleWithFixedDelay(processingLoop, 0, UI_UPDATE_TIME_MILLIS, TimeUnit.MILLISECONDS); // Start the system loop
+        // Start from the bundled Ft. Campbell route, the route button replaces it
+        final Resources resources = getResources();
+        processor.execute(new Runnable() {
+            public void run() {
+                try {
+                    useRoute(new Route(resources));
+                } catch (RuntimeException e) {
+                    routeFailed(e);
+                }
+            }
+        });
     }
 
     private void initUI() {
@@ -127,8 +163,11 @@ public class MainActivity extends Activity {
         roster_num_input = (EditText) findViewById(R.id.roster_num_input);
         heart_rate = (TextView) findViewById(R.id.heart_rate);
         battery = (TextView) findViewById(R.id.battery);
+        team_mode = (CheckBox) findViewById(R.id.team_mode_check);
+        squad_summary = (TextView) findViewById(R.id.squad_summary);
 
         map = (MapChart_CustomView) findViewById(R.id.map_chart);
+        map.setSource(latest);
 
         // Start button
         button_start = (Button) findViewById(R.id.buttonStart);
@@ -141,7 +180,7 @@ public class MainActivity extends Activity {
                                 Toast.makeText(context, "No data received from sensor.", Toast.LENGTH_SHORT).show();
                             }
                             else {
-                                dm.startSession();
+                                processor.execute(startSession);
                             }
                         }
                         else { Toast.makeText(context, "Please initialize route file before starting!", Toast.LENGTH_SHORT).show(); }
@@ -169,10 +208,20 @@ public class MainActivity extends Activity {
         button_pair.setOnClickListener(new View.OnClickListener() {
             @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
             public void onClick(View v) {
-                device_init = true;
                 String roster_num_str = roster_num_input.getText().toString();
                 int roster_num = Integer.parseInt(roster_num_str);
-                sensor = new ObanSensor(roster_num, getApplicationContext(), act);
+                if (team_mode.isChecked()) {
+                    // Watch the whole squad as well as our own sensor
+                    squad = new SquadMonitor(clock);
+                    sensor = new ObanSensor(roster_num, squad, getApplicationContext(), act);
+                    squad_summary.setVisibility(View.VISIBLE);
+                }
+                else {
+                    squad = null;
+                    sensor = new ObanSensor(roster_num, getApplicationContext(), act);
+                    squad_summary.setVisibility(View.GONE);
+                }
+                device_init = true;
             }
         });
 
@@ -181,7 +230,6 @@ public class MainActivity extends Activity {
         button_policy.setOnClickListener(new View.OnClickListener() {
             @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
             public void onClick(View v) {
-                policy_init = true;
                 openFileChooser(0);
             }
         });
@@ -191,12 +239,68 @@ public class MainActivity extends Activity {
         button_route.setOnClickListener(new View.OnClickListener() {
             @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
             public void onClick(View v) {
-                route_init = true;
                 openFileChooser(1);
             }
         });
 
-        moveData = new DataSmoother();
+        moveData = new DataSmoother(clock);
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (processor != null) {
+            // Commit the session journal and flush it to storage, after any tick in progress
+            processor.execute(new Runnable() {
+                public void run() {
+                    started = false;
+                    if (dm != null) dm.endSession();
+                }
+            });
+            processor.shutdown();
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Starts the session on the processor thread, so nothing else is using the data manager
+     */
+    private final Runnable startSession = new Runnable() {
+        public void run() {
+            if (dm == null || route == null || matcher == null) {
+                showError("Load a route and a policy before starting!");
+                return;
+            }
+            try {
+                dm.setRoute(route);
+                dm.startSession();
+                SquadMonitor sq = squad;
+                if (sq != null) {
+                    sq.setPolicy(dm.getPolicy());
+                    sq.startSession();
+                }
+                started = true;
+            } catch (RuntimeException e) {
+                stopProcessing("Couldn't start the session", e);
+            }
+        }
+    };
+
+    /**
+     * Stops the pipeline after a failure and tells the user, on the processor thread. Start
+     * begins a new session.
+     */
+    private void stopProcessing(String what, RuntimeException e) {
+        Log.e("MainRunnable", what, e);
+        started = false;
+        showError(what + ": " + e + ". Press Start to try again.");
+    }
+
+    private void showError(final String msg) {
+        runOnUiThread(new Runnable() {
+            public void run() {
+                Toast.makeText(getApplicationContext(), msg, Toast.LENGTH_LONG).show();
+            }
+        });
     }
 
     public void onActivityResult(int requestcode, int resultcode, Intent data) {
@@ -207,18 +311,70 @@ public class MainActivity extends Activity {
                 Context context = getApplicationContext();
                 Uri uri = data.getData();
                 Toast.makeText(context, uri.getPath(), Toast.LENGTH_SHORT).show();
-                dm = new DataManager(uri, getApplicationContext());
+                // Keep the same DataManager so a policy change mid march keeps the session state
+                if (dm == null) { dm = new DataManager(context); }
+                dm.loadPolicy(uri, new Policy.OnPolicyLoadedListener() {
+                    public void onPolicyLoaded(final boolean loaded) {
+                        if (loaded) policy_init = true;
+                        runOnUiThread(new Runnable() {
+                            public void run() {
+                                String msg = loaded ? "Policy loaded." : "Failed to load policy!";
+                                Toast.makeText(getApplicationContext(), msg, Toast.LENGTH_SHORT).show();
+                            }
+                        });
+                    }
+                });
             }
             if (requestcode == 1) {
-                Context context = getApplicationContext();
-                Uri uri = data.getData();
+                final Context context = getApplicationContext();
+                final Uri uri = data.getData();
                 Toast.makeText(context, uri.getPath(), Toast.LENGTH_SHORT).show();
-                route = new Route(uri, context);
-                map.updateRoute(route);
+                // Load the route where it is used, off the UI thread
+                processor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            useRoute(new Route(uri, context));
+                        } catch (RuntimeException e) {
+                            routeFailed(e);
+                        }
+                    }
+                });
             }
         }
     }
 
+    /**
+     * Tells the user a route couldn't be read, anything already loaded stays in use
+     */
+    private void routeFailed(RuntimeException e) {
+        Log.e("Route", "Route load failed", e);
+        showError("Failed to load route! " + e + (route != null ? ". Keeping " + route.title + "." : ""));
+    }
+
+    /**
+     * Switches to a loaded route, on the processor thread
+     */
+    private void useRoute(Route r) {
+        if (!r.routeDefined) {
+            showError("Failed to load route!");
+            return;
+        }
+        route = r;
+        matcher = new MapMatcher(route);
+        // The metabolic rate follows the new route's grades and segment numbers from the next fix
+        DataManager d = dm;
+        if (d != null) d.setRoute(route);
+        // Fixes near the route convert with a fitted local projection instead of the full UTM series
+        DegreesToUTM.setLocalProjection(route.localProjection(LOCAL_PROJECTION_MARGIN_METRES));
+        PacerSnapshot next = latest.get().copyOf();
+        next.route = route;
+        next.segment = -1;
+        next.currentSeg = null;
+        latest.set(next);
+        map.postInvalidate();
+        route_init = true;
+    }
+
     public void openFileChooser(int requestcode) {
         Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
         intent.setType("*/*");
@@ -289,17 +445,14 @@ public class MainActivity extends Activity {
     }
 
     /**
-     * Updates UI and system variables given a location
+     * Updates system variables given a location, and the next snapshot for the UI
      * @param local The user's current location
+     * @param next The snapshot being filled in
      */
-    private void handleCurrentLocation(Location local) {
+    private void handleCurrentLocation(Location local, PacerSnapshot next) {
         if (local != null) {
             speed = local.getSpeed();
 
-            // Update the latitude and longitude on the UI
-            lat_raw.setText("" + local.getLatitude());
-            lon_raw.setText("" + local.getLongitude());
-
             // Set the current location, speed, and bearing
             currentLocation.setLocation(local.getLatitude(), local.getLongitude());
             currentLocation.setSpeed((double) local.getSpeed());
@@ -307,53 +460,53 @@ public class MainActivity extends Activity {
 
             // Add the current speed and heading to the DataSmoother
             moveData.addSpeed(currentLocation.speedmph);
-            moveData.addHeading(local.getBearing());
-
-            // Update the easting and northing on the UI
-            easting.setText("" + HelperStuff.trimIt(currentLocation.easting,3));
-            northing.setText("" + HelperStuff.trimIt(currentLocation.northing,3));
+            if (local.hasBearing()) moveData.addHeading(local.getBearing());
 
-            // Calculate the update time and update it on the UI
-            long currentTime = System.currentTimeMillis();
+            // Calculate the update time
+            long currentTime = clock.millis();
             updateInterval = currentTime - updateTime;
             updateTime = currentTime;
-            updateFreq.setText("Update Interval: " + ((float) updateInterval / 1000f) + " s");
 
-            // Update the instant and average speed on the UI
-            speedinst.setText("Speed (inst): " + HelperStuff.trimIt(currentLocation.speedmph,2));
-            speedave.setText("Speed (ave): " + HelperStuff.trimIt(moveData.getMovingAverageSpeed(), 2));
-
-            // Update the instant and average heading on the UI
-            headinginst.setText("Heading (inst): " + HelperStuff.trimIt(currentLocation.bearing,2));
-            headingave.setText("Heading (ave): " + HelperStuff.trimIt(moveData.getLastHeading(), 2));
-
-            // Snapping the location point onto the route
-            LocationPoint snap = route.snapToLine(currentLocation);
-            Log.d("MainActivity", "Current Route = " + snap.currentSegment);
+            next.hasFix = true;
+            next.lat = local.getLatitude();
+            next.lon = local.getLongitude();
+            next.easting = currentLocation.easting;
+            next.northing = currentLocation.northing;
+            next.updateInterval = updateInterval;
+            next.speedInst = currentLocation.speedmph;
+            next.speedAve = moveData.getMovingAverageSpeed();
+            next.headingInst = currentLocation.bearing;
+            next.headingAve = moveData.getMovingAverageHeading();
+            next.headingConfidence = moveData.getHeadingConfidence();
+
+            // Matching the location point onto the route
+            matcher.update(currentLocation.easting, currentLocation.northing, updateInterval / 1000.0, snap);
+            Log.d("MainActivity", "Current Route = " + snap.segment);
 
             // If the LocationPoint was able to be snapped onto the route
-            if (snap.currentSegment >= 0) {
-                Segment s = route.route.get(snap.currentSegment);
-                map.currentSeg = s;
-                map.snap = snap;
-                segmentnum.setText("Segment #: "+snap.currentSegment);
-                segmenthead.setText("Segment Heading: "+HelperStuff.trimIt(s.heading,2));
-                segmentdist.setText("Distsance Along Segment = "+HelperStuff.trimIt(snap.distanceAlongSegment,2));
+            if (snap.onRoute()) {
+                Segment s = route.route.get(snap.segment);
+                next.segment = snap.segment;
+                next.currentSeg = s;
+                next.segmentHeading = s.heading;
+                next.along = snap.along;
+                next.snapEasting = snap.easting;
+                next.snapNorthing = snap.northing;
+                // Distance completed follows the lagged match, which later fixes have corrected
+                if (matcher.lagged.onRoute()) dm.setRouteProgress(Segment.convertM2Miles(matcher.lagged.progress));
+                dm.setRouteSegment(snap.segment);
             } else {
-                segmentnum.setText("Segment #: None");
-                segmenthead.setText("Segment Heading: None");
-                segmentdist.setText("Distsance Along Segment = WHO KNOWS?");
-                map.currentSeg = null;
-                map.snap = null;
+                next.segment = -1;
+                next.currentSeg = null;
+                dm.setRouteSegment(-1);
             }
+            dm.logFix(currentLocation.lat, currentLocation.lon, currentLocation.speedmph,
+                    snap.onRoute() ? Segment.convertM2Miles(snap.progress) : -1);
 
             // Update the guidance UI to provide speed guidance based on how fast user currently moving
-            if(moveData.getMovingAverageSpeed()<guidance)map.speedGraphic=MapChart_CustomView.SPEED_FASTER;
-            if(moveData.getMovingAverageSpeed()>guidance)map.speedGraphic=MapChart_CustomView.SPEED_SLOWER;
-            if(Math.abs(moveData.getMovingAverageSpeed() - guidance)<0.2)map.speedGraphic=MapChart_CustomView.SPEED_OK;
-
-            map.setLocation(currentLocation);
-            map.postInvalidate();
+            if(moveData.getMovingAverageSpeed()<guidance)next.speedGraphic=MapChart_CustomView.SPEED_FASTER;
+            if(moveData.getMovingAverageSpeed()>guidance)next.speedGraphic=MapChart_CustomView.SPEED_SLOWER;
+            if(Math.abs(moveData.getMovingAverageSpeed() - guidance)<0.2)next.speedGraphic=MapChart_CustomView.SPEED_OK;
         }
         else {
             Log.e("handleLocation","Location is null.");
@@ -361,37 +514,97 @@ public class MainActivity extends Activity {
     }
 
     /**
-     * Updates the UI and gets data from the sensor
+     * Gets data from the sensor, and the squad in team mode, into the next snapshot
      */
-    private void handleCurrentSensor() {
-        if (sensor != null) {
-            HR = sensor.getHR();
-            Battery = sensor.getBattery();
-            heart_rate.setText(String.valueOf(HR));
-            battery.setText(String.valueOf(Battery));
+    private void handleCurrentSensor(PacerSnapshot next) {
+        ObanSensor sn = sensor;
+        if (sn != null) {
+            HR = sn.getHR();
+            Battery = sn.getBattery();
+            next.hasSensor = true;
+            next.HR = HR;
+            next.battery = Battery;
         }
+        SquadMonitor sq = squad;
+        next.squad = sq != null ? sq.ranked() : null;
     }
 
     /**
-     * This runnable is the system loop.
+     * This runnable is the system loop. It runs on the processor thread, publishes a snapshot
+     * and has the UI thread show it.
      */
-    private Runnable activityUIManager = new Runnable() {
+    private Runnable processingLoop = new Runnable() {
         public void run() {
             Log.v("MainRunnable", "Main system loop");
-            long currentTime=System.currentTimeMillis(); // Get the current system time
-            if(currentTime-lastSmoothUpdate >= SMOOTHING_INTERVAL_MILLIS) {
-                moveData.smoothData(); // If it's time to smooth data for the UI, do that
-                lastSmoothUpdate=currentTime;
+            try {
+                long currentTime=clock.millis(); // Get the current system time
+                if(currentTime-lastSmoothUpdate >= SMOOTHING_INTERVAL_MILLIS) {
+                    moveData.smoothData(); // If it's time to smooth data for the UI, do that
+                    lastSmoothUpdate=currentTime;
+                }
+                if (started) {
+                    PacerSnapshot next = latest.get().copyOf();
+                    Location local = getLastKnownLocation(); // Get the current location and handle the current location
+                    handleCurrentLocation(local, next);
+                    handleCurrentSensor(next); // Get the data from the sensor and update the data manager
+                    dm.update(HR, speed);
+                    SquadMonitor sq = squad;
+                    if (sq != null) sq.setDistance(dm.distanceCompleted);
+                    guidance = dm.getCurrent(dm.GUID);
+                    next.guidance = guidance;
+                    latest.set(next);
+                    handler.post(renderUI);
+                    map.postInvalidate(); // Tell Android the map needs to be redrawn ASAP
+                }
+            } catch (RuntimeException e) {
+                // Thrown out of here it would cancel the schedule without a trace
+                if (started) stopProcessing("Processing stopped", e);
+                else Log.e("MainRunnable", "Smoothing failed", e);
             }
-            Location local = getLastKnownLocation(); // Get the current location and handle the current location
-            if (started) {
-                handleCurrentLocation(local);
-                handleCurrentSensor(); // Get the data from the sensor and update the data manager
-                dm.update(HR, speed);
-                guidance = dm.getCurrent(dm.GUID);
-                map.postInvalidate(); // Tell Android the map needs to be redrawn ASAP
+        }
+    };
+
+    /**
+     * Shows the latest snapshot, on the UI thread
+     */
+    private final Runnable renderUI = new Runnable() {
+        public void run() {
+            PacerSnapshot s = latest.get();
+            if (s.hasFix) {
+                lat_raw.setText("" + s.lat);
+                lon_raw.setText("" + s.lon);
+                easting.setText("" + HelperStuff.trimIt(s.easting,3));
+                northing.setText("" + HelperStuff.trimIt(s.northing,3));
+                updateFreq.setText("Update Interval: " + ((float) s.updateInterval / 1000f) + " s");
+                speedinst.setText("Speed (inst): " + HelperStuff.trimIt(s.speedInst,2));
+                speedave.setText("Speed (ave): " + HelperStuff.trimIt(s.speedAve, 2));
+                headinginst.setText("Heading (inst): " + HelperStuff.trimIt(s.headingInst,2));
+                headingave.setText("Heading (ave): " + HelperStuff.trimIt(s.headingAve, 2)
+                        + " (" + HelperStuff.trimIt(s.headingConfidence, 2) + ")");
+                if (s.segment >= 0) {
+                    segmentnum.setText("Segment #: "+s.segment);
+                    segmenthead.setText("Segment Heading: "+HelperStuff.trimIt(s.segmentHeading,2));
+                    segmentdist.setText("Distsance Along Segment = "+HelperStuff.trimIt(s.along,2));
+                } else {
+                    segmentnum.setText("Segment #: None");
+                    segmenthead.setText("Segment Heading: None");
+                    segmentdist.setText("Distsance Along Segment = WHO KNOWS?");
+                }
+            }
+            if (s.hasSensor) {
+                heart_rate.setText(String.valueOf(s.HR));
+                battery.setText(String.valueOf(s.battery));
+            }
+            if (s.squad != null) {
+                // The three under the most strain
+                StringBuilder sb = new StringBuilder("Squad (" + s.squad.length + "):");
+                for (int i = 0; i < s.squad.length && i < 3; i++) {
+                    sb.append(" #").append(s.squad[i].roster)
+                            .append(" PSI ").append(HelperStuff.trimIt(s.squad[i].PSI, 1))
+                            .append(" HR ").append((int) s.squad[i].HR);
+                }
+                squad_summary.setText(sb.toString());
             }
-            handler.postDelayed(activityUIManager, UI_UPDATE_TIME_MILLIS); // Loop the runnable
         }
     };
 }
@@ -19,6 +19,8 @@ import com.dataxign.mark.aasruckmarchpacer.geo.LocationPoint;
 import com.dataxign.mark.aasruckmarchpacer.geo.Route;
 import com.dataxign.mark.aasruckmarchpacer.geo.Segment;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 public class MapChart_CustomView extends View {
 
 	public int displayMode=0;
@@ -28,7 +30,6 @@ public class MapChart_CustomView extends View {
 	public static final int SPEED_FASTER=1;
 	public static final int SPEED_OK=0;
 	public static final int SPEED_SLOWER=-1;
-	public int speedGraphic=0;
 	//public boolean useFtCampbellMap=false;
 
 	Resources res;
@@ -39,10 +40,12 @@ public class MapChart_CustomView extends View {
 	int height;
 	int width;
 
-	private Route route=null;
-	private LocationPoint currentLocation=null;
-	public Segment currentSeg=null;
-	public LocationPoint snap=null;
+	// What to draw, published by the processing thread
+	private AtomicReference<PacerSnapshot> source=null;
+
+	// The route as a path in pixels, built once per route so a frame doesn't walk every segment
+	private Route drawnRoute=null;
+	private Path routePath=null;
 
 	double originalImageWidth = 800;
 	double originalImageHeight = 800;
@@ -136,30 +139,39 @@ public class MapChart_CustomView extends View {
 		return height;
 	}
 
+	/**
+	 * Sets where the map reads the latest snapshot from
+	 */
+	public void setSource(AtomicReference<PacerSnapshot> source){
+		this.source=source;
+	}
+
 	@Override
 	public void onDraw(Canvas canvas) {
 		super.onDraw(canvas);
 
 		Log.v("Map", "Drawing Map...");
 		canvas.drawBitmap(base, 0, 0, null);
+		PacerSnapshot s=source!=null ? source.get() : null; // Read once, so the whole frame draws the same tick
+		if(s==null)return;
 
 		if(displayMode==MAP_DRAW_MAP) {
-			drawRoute(canvas);
-			drawCurrentSeg(canvas);
-			drawPoint(canvas);
-			drawSnap(canvas);
+			drawRoute(canvas, s.route);
+			drawCurrentSeg(canvas, s.currentSeg);
+			drawPoint(canvas, s);
+			drawSnap(canvas, s);
 			//drawAxes(canvas);
 			//if (dataY != null)
 			//plotChart(canvas);
 			// addText(canvas);
 		}
 		else{
-			drawGuidance(canvas);
+			drawGuidance(canvas, s.speedGraphic);
 		}
 
 	}
 
-	public void drawGuidance(Canvas c) {
+	public void drawGuidance(Canvas c, int speedGraphic) {
 		Paint paint2 = new Paint(Paint.ANTI_ALIAS_FLAG);
 		paint2.setStrokeWidth(2);
 		paint2.setColor(Color.BLACK);
@@ -217,11 +229,7 @@ public class MapChart_CustomView extends View {
 		c.drawRect(0,250,800,550,p);
 
 	}
-	public void updateRoute(Route r){
-		route=r;
-	}
-
-	public void drawCurrentSeg(Canvas c){
+	public void drawCurrentSeg(Canvas c, Segment currentSeg){
 		Log.v("Map","Current Segment...");
 		if (currentSeg==null)return;
 				//draw this segment
@@ -229,13 +237,24 @@ public class MapChart_CustomView extends View {
 
 	}
 
-	public void drawRoute(Canvas c){
+	public void drawRoute(Canvas c, Route route){
 		Log.v("Map","Drawing Route...");
 		if (route==null)return;
+		if (route!=drawnRoute) scaleRoute(route);
 		if(route.title.equals("Ft. Campbell")){
 			//Add Map
 			c.drawBitmap(ftcampbellmap, 0, 0, null);
+		}
+		if (routePath!=null) c.drawPath(routePath, paintLine);
+	}
 
+	/**
+	 * Works out the map scale for a route and builds its path
+	 */
+	private void scaleRoute(Route route){
+		drawnRoute=route;
+		routePath=null;
+		if(route.title.equals("Ft. Campbell")){
 			//Map has it's own parameter that fix the offsets
 			//LocationPoint br=new LocationPoint(36.607957,-87.449653); //ok
 			LocationPoint br=new LocationPoint(36.608191,-87.449555); //pretty good
@@ -277,37 +296,35 @@ public class MapChart_CustomView extends View {
 			}
 		}
 
+		Path path=new Path();
 		for(int s=0;s<route.route.size();s++){
 			Segment seg=route.route.get(s);
-			//draw this segment
-			c.drawLine((float)(seg.start.easting-xoff)*(float)(pxperm_x),(float)(ytop-(seg.start.northing-yoff))*(float)(pxperm_y),(float)(seg.end.easting-xoff)*(float)(pxperm_x),(float)(ytop-(seg.end.northing-yoff))*(float)(pxperm_y),paintLine);
+			//add this segment
+			path.moveTo((float)(seg.start.easting-xoff)*(float)(pxperm_x),(float)(ytop-(seg.start.northing-yoff))*(float)(pxperm_y));
+			path.lineTo((float)(seg.end.easting-xoff)*(float)(pxperm_x),(float)(ytop-(seg.end.northing-yoff))*(float)(pxperm_y));
 		}
-
+		routePath=path;
 	}
 
-	public void drawPoint(Canvas c){
+	public void drawPoint(Canvas c, PacerSnapshot s){
 		//draw the current point
-		if(currentLocation==null)return;
-		if(currentLocation.easting>0 && route.routeDefined){
+		if(!s.hasFix || s.route==null)return;
+		if(s.easting>0 && s.route.routeDefined){
 			//Likely we have a point to plot
-			c.drawCircle((float) (currentLocation.easting - xoff) * (float) (pxperm_x), (float) (ytop - (currentLocation.northing - yoff)) * (float) (pxperm_y), 10, paint);
+			c.drawCircle((float) (s.easting - xoff) * (float) (pxperm_x), (float) (ytop - (s.northing - yoff)) * (float) (pxperm_y), 10, paint);
 
 		}
 	}
-	public void drawSnap(Canvas c){
+	public void drawSnap(Canvas c, PacerSnapshot s){
 		//draw the current point
-		if(snap==null)return;
-		if(snap.easting>0){
+		if(s.segment<0)return;
+		if(s.snapEasting>0){
 			//Likely we have a point to plot
-			c.drawCircle((float)(snap.easting-xoff)*(float)(pxperm_x),(float)(ytop-(snap.northing-yoff))*(float)(pxperm_y),10,paintS);
+			c.drawCircle((float)(s.snapEasting-xoff)*(float)(pxperm_x),(float)(ytop-(s.snapNorthing-yoff))*(float)(pxperm_y),10,paintS);
 
 		}
 	}
 
-	public void setLocation(LocationPoint p){
-		currentLocation=p;
-	}
-
 	public void drawAxes(Canvas canvas) {
 		float sx = (float) scaleWidthPercent;
 		float sy = (float) scaleHeightPercent;
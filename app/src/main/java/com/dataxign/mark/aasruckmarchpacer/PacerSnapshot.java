@@ -0,0 +1,69 @@
+package com.dataxign.mark.aasruckmarchpacer;
+
+import com.dataxign.mark.aasruckmarchpacer.geo.Route;
+import com.dataxign.mark.aasruckmarchpacer.geo.Segment;
+import com.dataxign.mark.aasruckmarchpacer.mdp.SquadMonitor;
+
+/**
+ * Everything the UI shows, as of one tick of the processing thread. Each tick fills in a copy
+ * of the last snapshot and publishes it, after which nobody changes it, so the UI thread and
+ * the map can read it without locks.
+ */
+public class PacerSnapshot {
+
+    // The last fix
+    public boolean hasFix = false;
+    public double lat, lon;
+    public double easting, northing;
+    public long updateInterval; // Millis between the last two fixes
+    public double speedInst, speedAve;
+    public double headingInst, headingAve, headingConfidence;
+
+    // Where the last fix matched on the route, segment -1 if it didn't
+    public Route route = null;
+    public int segment = -1;
+    public Segment currentSeg = null;
+    public double segmentHeading, along;
+    public double snapEasting, snapNorthing;
+
+    // Sensor and guidance
+    public boolean hasSensor = false;
+    public int HR, battery;
+    public double guidance = 0;
+    public int speedGraphic = MapChart_CustomView.SPEED_OK;
+    public SquadMonitor.Status[] squad = null; // Highest strain first, null outside team mode
+
+    /**
+     * This generates a copy of this object for the next tick to fill in. REMEMBER to copy all
+     * members of this class
+     * @return The copy of this object
+     */
+    public PacerSnapshot copyOf() {
+        PacerSnapshot s = new PacerSnapshot();
+        s.hasFix = hasFix;
+        s.lat = lat;
+        s.lon = lon;
+        s.easting = easting;
+        s.northing = northing;
+        s.updateInterval = updateInterval;
+        s.speedInst = speedInst;
+        s.speedAve = speedAve;
+        s.headingInst = headingInst;
+        s.headingAve = headingAve;
+        s.headingConfidence = headingConfidence;
+        s.route = route;
+        s.segment = segment;
+        s.currentSeg = currentSeg;
+        s.segmentHeading = segmentHeading;
+        s.along = along;
+        s.snapEasting = snapEasting;
+        s.snapNorthing = snapNorthing;
+        s.hasSensor = hasSensor;
+        s.HR = HR;
+        s.battery = battery;
+        s.guidance = guidance;
+        s.speedGraphic = speedGraphic;
+        s.squad = squad;
+        return s;
+    }
+}
@@ -0,0 +1,22 @@
+package com.dataxign.mark.aasruckmarchpacer.functions;
+
+/**
+ * Where the pacing pipeline gets the time. The app uses SYSTEM, a replay uses a ManualClock set
+ * from the recorded sample times so it runs at any speed with the same results.
+ */
+public interface Clock {
+
+    /**
+     * The wall clock
+     */
+    Clock SYSTEM = new Clock() {
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * @return The time, milliseconds since the epoch
+     */
+    long millis();
+}
@@ -0,0 +1,159 @@
+package com.dataxign.mark.aasruckmarchpacer.functions;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+/**
+ * A directory of files named by a key, usually a hash of the source they were built from.
+ * Entries are written through a temp file so a half written entry never has a valid name, and
+ * the least recently used ones are dropped past a maximum count.
+ */
+public class ContentCache {
+
+    /**
+     * Writes an entry's content
+     */
+    public interface Writer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private final File dir;
+    private final String prefix;
+    private final String suffix;
+    private final int maxEntries;
+
+    public ContentCache(File dir, String prefix, String suffix, int maxEntries){
+        this.dir=dir;
+        this.prefix=prefix;
+        this.suffix=suffix;
+        this.maxEntries=maxEntries;
+        if(!dir.isDirectory() && !dir.mkdirs()){
+            Log.w("ContentCache", "Can't create cache dir "+dir);
+        }
+    }
+
+    /**
+     * The file for a key, which may not exist yet
+     */
+    public File entry(String key){
+        return new File(dir, prefix+key+suffix);
+    }
+
+    /**
+     * Memory maps an entry and marks it as recently used. The mapping stays valid after return.
+     */
+    public ByteBuffer map(File file) throws IOException{
+        RandomAccessFile raf=new RandomAccessFile(file, "r");
+        try{
+            FileChannel ch=raf.getChannel();
+            ByteBuffer buf=ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            file.setLastModified(System.currentTimeMillis());
+            return buf;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes an entry, then drops old entries past the maximum count
+     * @return false if the entry could not be written, the cache is left without it
+     */
+    public boolean store(File target, Writer writer){
+        File tmp=new File(dir, target.getName()+".tmp");
+        boolean stored=false;
+        try{
+            FileOutputStream out=new FileOutputStream(tmp);
+            try{
+                BufferedOutputStream buffered=new BufferedOutputStream(out, 64*1024);
+                writer.write(buffered);
+                buffered.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if(!tmp.renameTo(target))throw new IOException("rename failed");
+            Log.d("ContentCache", "Cached "+target.getName());
+            stored=true;
+        } catch(IOException e){
+            Log.w("ContentCache", "Can't cache "+target.getName()+". "+e.getMessage());
+            tmp.delete();
+        }
+        evict();
+        return stored;
+    }
+
+    /**
+     * Drops the least recently used entries past maxEntries
+     */
+    private void evict(){
+        File[] files=dir.listFiles();
+        if(files==null)return;
+        int count=0;
+        for(int i=0;i<files.length;i++){
+            if(files[i].getName().endsWith(suffix))count++;
+        }
+        while(count>maxEntries){
+            File oldest=null;
+            for(int i=0;i<files.length;i++){
+                File f=files[i];
+                if(f==null || !f.getName().endsWith(suffix))continue;
+                if(oldest==null || f.lastModified()<oldest.lastModified())oldest=f;
+            }
+            if(oldest==null)return;
+            oldest.delete();
+            for(int i=0;i<files.length;i++){
+                if(files[i]==oldest)files[i]=null;
+            }
+            count--;
+        }
+    }
+
+    /**
+     * Reads the first bytes of a stream without consuming them
+     * @param in Stream supporting mark, such as a BufferedInputStream
+     * @param n Most bytes to look at
+     * @return Heap buffer of up to n bytes, fewer if the stream is shorter
+     */
+    public static ByteBuffer peek(InputStream in, int n) throws IOException{
+        byte[] buf=new byte[n];
+        in.mark(n);
+        int len=0;
+        int r;
+        while(len<n && (r=in.read(buf, len, n-len))>=0)len+=r;
+        in.reset();
+        ByteBuffer out=ByteBuffer.wrap(buf);
+        out.limit(len);
+        return out;
+    }
+
+    /**
+     * Reads a stream to the end into a single array
+     * @param in Stream to read, left open
+     * @return Heap buffer wrapping the array, limit is the number of bytes read
+     */
+    public static ByteBuffer readFully(InputStream in) throws IOException{
+        byte[] buf=new byte[Math.max(in.available()+1, 64*1024)];
+        int len=0;
+        int n;
+        while((n=in.read(buf, len, buf.length-len))>=0){
+            len+=n;
+            if(len==buf.length){
+                byte[] bigger=new byte[buf.length*2];
+                System.arraycopy(buf, 0, bigger, 0, len);
+                buf=bigger;
+            }
+        }
+        ByteBuffer out=ByteBuffer.wrap(buf);
+        out.limit(len);
+        return out;
+    }
+}
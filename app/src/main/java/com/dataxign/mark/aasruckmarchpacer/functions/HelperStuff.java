@@ -1,5 +1,10 @@
 package com.dataxign.mark.aasruckmarchpacer.functions;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * Created by Mark on 4/18/2016.
  */
@@ -11,4 +16,70 @@ public class HelperStuff {
         if(num.length()>=posdot+dp+1) num=num.substring(0,posdot+dp+1);
         return num;
     }
+
+    /**
+     * Fast 64 bit hash of the remaining bytes of a buffer, eight bytes per step.
+     * Used to key cached files on their content, it is not cryptographic.
+     * @param data Bytes to hash, position and limit are left alone
+     * @return The hash
+     */
+    public static long contentHash(ByteBuffer data){
+        ByteBuffer b=data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int i=b.position();
+        int end=b.limit();
+        long h=0x9E3779B97F4A7C15L^(end-i);
+        for(;i+8<=end;i+=8){
+            h^=Long.rotateLeft(b.getLong(i)*0x87C37B91114253D5L,31)*0x4CF5AD432745937FL;
+            h=Long.rotateLeft(h,27)*5+0x52DCE729;
+        }
+        for(;i<end;i++){
+            h^=(b.get(i)&0xFFL)*0x87C37B91114253D5L;
+            h=Long.rotateLeft(h,11)*0x4CF5AD432745937FL;
+        }
+        // Final avalanche so similar files land far apart
+        h^=h>>>33;
+        h*=0xFF51AFD7ED558CCDL;
+        h^=h>>>33;
+        h*=0xC4CEB9FE1A85EC53L;
+        h^=h>>>33;
+        return h;
+    }
+
+    /**
+     * Fast 64 bit hash of a stream read to the end through a small buffer, so a big file never
+     * sits in memory. Not the same value as contentHash of a buffer holding the same bytes.
+     * @param in Stream to hash, left open
+     * @return The hash
+     */
+    public static long contentHash(InputStream in) throws IOException{
+        byte[] buf=new byte[8192];
+        ByteBuffer b=ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+        long h=0x9E3779B97F4A7C15L;
+        long total=0;
+        int have=0;
+        int n;
+        while((n=in.read(buf, have, buf.length-have))>=0){
+            have+=n;
+            total+=n;
+            int words=have&~7;
+            for(int i=0;i<words;i+=8){
+                h^=Long.rotateLeft(b.getLong(i)*0x87C37B91114253D5L,31)*0x4CF5AD432745937FL;
+                h=Long.rotateLeft(h,27)*5+0x52DCE729;
+            }
+            // Carry the odd bytes over to the next read
+            System.arraycopy(buf, words, buf, 0, have-words);
+            have-=words;
+        }
+        for(int i=0;i<have;i++){
+            h^=(buf[i]&0xFFL)*0x87C37B91114253D5L;
+            h=Long.rotateLeft(h,11)*0x4CF5AD432745937FL;
+        }
+        h^=total;
+        h^=h>>>33;
+        h*=0xFF51AFD7ED558CCDL;
+        h^=h>>>33;
+        h*=0xC4CEB9FE1A85EC53L;
+        h^=h>>>33;
+        return h;
+    }
 }
@@ -0,0 +1,25 @@
+package com.dataxign.mark.aasruckmarchpacer.functions;
+
+/**
+ * A clock that only moves when it is told to, for replaying recorded sessions
+ */
+public class ManualClock implements Clock {
+
+    private long now;
+
+    public ManualClock(long start) {
+        now = start;
+    }
+
+    public long millis() {
+        return now;
+    }
+
+    public void set(long time) {
+        now = time;
+    }
+
+    public void advance(long millis) {
+        now += millis;
+    }
+}
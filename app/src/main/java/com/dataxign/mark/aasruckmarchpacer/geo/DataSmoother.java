@@ -1,6 +1,6 @@
 package com.dataxign.mark.aasruckmarchpacer.geo;
 
-import java.util.ArrayList;
+import com.dataxign.mark.aasruckmarchpacer.functions.Clock;
 
 /**
  * Created by Mark on 4/18/2016.
@@ -12,17 +12,25 @@ public class DataSmoother {
     private double speed_max=-1;
     private double speed_min=999999;
     private int speed_N=0;
-    ArrayList<Double> speedList = new ArrayList<Double>(5);
-    private int maxListSize=20;
+    // Moving averages over the last 19 speeds and headings by default
+    private final SampleWindow speedWindow=new SampleWindow(1, 19);
+    private final SampleWindow headingWindow=new SampleWindow(2, 19); // Sin and cos of each heading
     private double lastSpeedMov=0;
     private double lastSpeedAve=-1;
-    private double heading_sum=0;
-    private double heading_max=-1;
-    private double heading_min=999999;
+    // Headings since the last smooth, as a vector sum so they average correctly through north
+    private double heading_sin=0;
+    private double heading_cos=0;
     private int heading_N=0;
     private double lastHeadingAve=-1;
-    private boolean firstHeading=true;
-    private boolean topLeft=false;
+    private final Clock clock; // Times samples added without one
+
+    public DataSmoother(){
+        this(Clock.SYSTEM);
+    }
+
+    public DataSmoother(Clock clock){
+        this.clock=clock;
+    }
 
     private void resetSpeed(){
         speed_max=-1;
@@ -31,18 +39,31 @@ public class DataSmoother {
         speed_N=0;
     }
     private void resetHeading(){
-        heading_max=-1;
-        heading_min=999999;
-        heading_sum=0;
+        heading_sin=0;
+        heading_cos=0;
         heading_N=0;
-        firstHeading=true;
+    }
+
+    /**
+     * Sets the moving average window for speed and heading
+     * @param samples Most samples averaged, at least 1
+     * @param millis Oldest sample averaged, or 0 to average the last samples whatever their age
+     */
+    public void setWindow(int samples, long millis){
+        speedWindow.setWindow(samples, millis);
+        headingWindow.setWindow(samples, millis);
+        lastSpeedMov=computeMovingAverageSpeed();
     }
 
     public void addSpeed(double speed){
+        addSpeed(speed, clock.millis());
+    }
+
+    public void addSpeed(double speed, long timeMillis){
         if(speed<0 || speed>15)return;
 
-        if(speed>.1)speedList.add(new Double(speed));
-        if(speedList.size()>=maxListSize)speedList.remove(0);
+        speedWindow.expire(timeMillis);
+        if(speed>.1)speedWindow.add(timeMillis, speed);
         lastSpeedMov=computeMovingAverageSpeed();
 
 
@@ -53,13 +74,7 @@ public class DataSmoother {
     }
 
     public double computeMovingAverageSpeed(){
-        if(speedList.size()>0) {
-            double sum=0;
-            for (int i = 0; i < speedList.size(); i++) {
-                sum+=speedList.get(i).doubleValue();
-            }
-            return sum/speedList.size();
-        }
+        if(speedWindow.count()>0)return speedWindow.sum(0)/speedWindow.count();
         else return 0;
     }
 
@@ -68,27 +83,45 @@ public class DataSmoother {
     }
 
     public void addHeading(double heading){
+        addHeading(heading, clock.millis());
+    }
+
+    public void addHeading(double heading, long timeMillis){
         if(heading<0 || heading>360)return;
-        //remember check if near border, convert low to high or high to low depending on first heading
-        //i.e less than or greater than 180
-        if(firstHeading){
-            if(heading>270){
-                topLeft=true;
-            }
-            else topLeft=false;
-            firstHeading=false;
-        }
-        if(topLeft){
-            if(heading<=90)heading=heading+360;
-        }
-        else{
-            if(heading>270)heading=heading-360;
-        }
-        heading_sum+=heading;
+        double r=Math.toRadians(heading);
+        double sin=Math.sin(r);
+        double cos=Math.cos(r);
+        headingWindow.add(timeMillis, sin, cos);
+        heading_sin+=sin;
+        heading_cos+=cos;
         heading_N++;
-        if(heading>heading_max)heading_max=heading;
-        if(heading<heading_min)heading_min=heading;
+    }
+
+    /**
+     * Circular mean of the headings in the moving average window
+     * @return Degrees, 0 to 360, or -1 if there are none or they cancel out
+     */
+    public double getMovingAverageHeading(){
+        return meanHeading(headingWindow.sum(0), headingWindow.sum(1), headingWindow.count());
+    }
 
+    /**
+     * How closely the headings in the moving average window agree, the length of their mean
+     * unit vector. 1 if they are all the same, near 0 if they are scattered or turn back on
+     * themselves.
+     */
+    public double getHeadingConfidence(){
+        int n=headingWindow.count();
+        if(n==0)return 0;
+        double s=headingWindow.sum(0), c=headingWindow.sum(1);
+        return Math.min(1, Math.sqrt(s*s+c*c)/n);
+    }
+
+    private static double meanHeading(double sin, double cos, int n){
+        if(n==0 || Math.sqrt(sin*sin+cos*cos)<1e-9*n)return -1;
+        double h=Math.toDegrees(Math.atan2(sin, cos));
+        if(h<0)h+=360;
+        return h;
     }
 
     public void smoothData(){
@@ -110,18 +143,8 @@ public class DataSmoother {
     }
 
     public void smoothHeading(){
-        lastHeadingAve=-1;
         double sheading=-1;
-        if(heading_N>=3){
-            //remove min and max
-            heading_sum-=heading_max;
-            heading_sum-=heading_min;
-            heading_N-=2;
-            sheading=heading_sum/(double)heading_N;
-
-            if(sheading>360)sheading-=360;
-            if(sheading<0)sheading=360+sheading;
-        }
+        if(heading_N>=3)sheading=meanHeading(heading_sin, heading_cos, heading_N);
         lastHeadingAve=sheading;
         resetHeading();
     }
@@ -1,10 +1,11 @@
 package com.dataxign.mark.aasruckmarchpacer.geo;
 
-import com.dataxign.mark.aasruckmarchpacer.geo.LocationPoint;
-
 /**
  * Created by Mark on 3/18/2016.
  * This class converts degrees latitude and longitude to UTM
+ *
+ * The Krueger series constants only depend on the ellipsoid, so they are worked out once when
+ * the class loads. The zone comes from the longitude.
  */
 public class DegreesToUTM {
     static double a = 6378137;      //equatorial radius	a	6378137
@@ -18,76 +19,177 @@ public class DegreesToUTM {
     static double AA=6367449.146;   //Meridian radius	AA	6367449.146
     static double alpha1,alpha2,alpha3,alpha4,alpha5,alpha6,alpha7,alpha8,alpha9,alpha10;
 
-    public DegreesToUTM(){
+    static final double FALSE_EASTING=500000;
+    static final double FALSE_NORTHING_SOUTH=10000000;
+
+    // alpha1..alpha10 for the series loop
+    private static final double[] ALPHA=new double[10];
+
+    // Single point conversions go through these so they don't allocate
+    private static final ThreadLocal<double[]> scratch=new ThreadLocal<double[]>(){
+        protected double[] initialValue(){
+            return new double[2];
+        }
+    };
+
+    // Used instead of the full conversion for points inside it, see setLocalProjection
+    private static volatile LocalProjection local=null;
+
+    static{
         computeAlphas();
     }
 
+    public DegreesToUTM(){
+    }
+
+    /**
+     * Works out the series constants. Each is n^k times a polynomial in n, evaluated with Horner's scheme.
+     * Runs once when the class loads.
+     */
     public static void computeAlphas(){
-        alpha1=(1d/2d)*n - (2d/3d)*Math.pow(n,2) + (5d/16d)*Math.pow(n,3) + (41d/180d)*Math.pow(n,4) - (127d/288d)*Math.pow(n,5) + (7891d/37800d)*Math.pow(n,6) + (72161d/387072d)*Math.pow(n,7) - (18975107d/50803200d)*Math.pow(n,8) + (60193001d/290304000d)*Math.pow(n,9) + (134592031d/1026432000d)*Math.pow(n,10);
-        alpha2=(13d/48d)*Math.pow(n,2) - (3d/5d)*Math.pow(n,3) + (557d/1440d)*Math.pow(n,4) + (281d/630d)*Math.pow(n,5) - (1983433d/1935360d)*Math.pow(n,6) + (13769d/28800d)*Math.pow(n,7) + (148003883d/174182400d)*Math.pow(n,8) - (705286231d/465696000d)*Math.pow(n,9) + (1703267974087d/3218890752000d)*Math.pow(n,10);
-        alpha3=(61d/240d)*Math.pow(n,3) - (103d/140d)*Math.pow(n,4) + (15061d/26880d)*Math.pow(n,5) + (167603d/181440d)*Math.pow(n,6) - (67102379d/29030400d)*Math.pow(n,7) + (79682431d/79833600d)*Math.pow(n,8) + (6304945039d/2128896000d)*Math.pow(n,9) -  (6601904925257d/1307674368000d)*Math.pow(n,10);
-        alpha4=(49561d/161280d)*Math.pow(n,4) - (179d/168d)*Math.pow(n,5) + (6601661d/7257600d)*Math.pow(n,6) + (97445d/49896d)*Math.pow(n,7) - (40176129013d/7664025600d)*Math.pow(n,8) + (138471097d/66528000d)*Math.pow(n,9) + (48087451385201d/5230697472000d)*Math.pow(n,10);
-        alpha5=(34729d/80640d)*Math.pow(n,5) - (3418889d/1995840d)*Math.pow(n,6) + (14644087d/9123840d)*Math.pow(n,7) +   (2605413599d/622702080d)*Math.pow(n,8) - (31015475399d/2583060480d)*Math.pow(n,9) +  (5820486440369d/1307674368000d)*Math.pow(n,10);
-        alpha6=(212378941d/319334400d)*Math.pow(n,6) - (30705481d/10378368d)*Math.pow(n,7) + (175214326799d/58118860800d)*Math.pow(n,8) + (870492877d/96096000d)*Math.pow(n,9) - (1328004581729000d/47823519744000d)*Math.pow(n,10);
-        alpha7=(1522256789d/1383782400d)*Math.pow(n,7) - (16759934899d/3113510400d)*Math.pow(n,8) + (1315149374443d/221405184000d)*Math.pow(n,9) + (71809987837451d/3629463552000d)*Math.pow(n,10);
-        alpha8=(1424729850961d/743921418240d)*Math.pow(n,8) -   (256783708069d/25204608000d)*Math.pow(n,9) + (2468749292989890d/203249958912000d)*Math.pow(n,10);
-        alpha9=(21091646195357d/6080126976000d)*Math.pow(n,9) - (67196182138355800d/3379030566912000d)*Math.pow(n,10);
-        alpha10=(77911515623232800d/12014330904576000d)*Math.pow(n,10);
-        //Log.w("Convert:","Alpha1 "+alpha1+" | alpha 2 "+alpha2+" | alpha 3 "+alpha3+" | alpha 4 "+alpha4+" | alpha 5 "+alpha5+" | alpha 6 "+alpha6+" | alpha 7 "+alpha7+" | alpha 8 "+alpha8+" | alpha 9 "+alpha9+" | alpha 10 "+alpha10+" | end");
+        alpha1=series(1, 1d/2d, -2d/3d, 5d/16d, 41d/180d, -127d/288d, 7891d/37800d, 72161d/387072d, -18975107d/50803200d, 60193001d/290304000d, 134592031d/1026432000d);
+        alpha2=series(2, 13d/48d, -3d/5d, 557d/1440d, 281d/630d, -1983433d/1935360d, 13769d/28800d, 148003883d/174182400d, -705286231d/465696000d, 1703267974087d/3218890752000d);
+        alpha3=series(3, 61d/240d, -103d/140d, 15061d/26880d, 167603d/181440d, -67102379d/29030400d, 79682431d/79833600d, 6304945039d/2128896000d, -6601904925257d/1307674368000d);
+        alpha4=series(4, 49561d/161280d, -179d/168d, 6601661d/7257600d, 97445d/49896d, -40176129013d/7664025600d, 138471097d/66528000d, 48087451385201d/5230697472000d);
+        alpha5=series(5, 34729d/80640d, -3418889d/1995840d, 14644087d/9123840d, 2605413599d/622702080d, -31015475399d/2583060480d, 5820486440369d/1307674368000d);
+        alpha6=series(6, 212378941d/319334400d, -30705481d/10378368d, 175214326799d/58118860800d, 870492877d/96096000d, -1328004581729000d/47823519744000d);
+        alpha7=series(7, 1522256789d/1383782400d, -16759934899d/3113510400d, 1315149374443d/221405184000d, 71809987837451d/3629463552000d);
+        alpha8=series(8, 1424729850961d/743921418240d, -256783708069d/25204608000d, 2468749292989890d/203249958912000d);
+        alpha9=series(9, 21091646195357d/6080126976000d, -67196182138355800d/3379030566912000d);
+        alpha10=series(10, 77911515623232800d/12014330904576000d);
+        ALPHA[0]=alpha1; ALPHA[1]=alpha2; ALPHA[2]=alpha3; ALPHA[3]=alpha4; ALPHA[4]=alpha5;
+        ALPHA[5]=alpha6; ALPHA[6]=alpha7; ALPHA[7]=alpha8; ALPHA[8]=alpha9; ALPHA[9]=alpha10;
+    }
 
+    /**
+     * n^power*(c[0] + c[1]*n + c[2]*n^2 ...)
+     */
+    private static double series(int power, double... c){
+        double sum=0;
+        for(int i=c.length-1;i>=0;i--)sum=sum*n+c[i];
+        for(int i=0;i<power;i++)sum*=n;
+        return sum;
     }
 
-    public static void latLon2UTM(LocationPoint loc){
-        computeAlphas();
-        double lat=loc.lat;
-        double lon=loc.lon;
-        double meridian=-87;
-        if(lon>-72 && lon<-71.0)meridian=-69;
-        if(lon>-87.5 && lon<-87.0)meridian=-87;
-
-        //Log.w("Convert", "Lat: "+lat+" | Lon: "+lon);
-        //double meridian=-87; //165;
-        double falseEasting=500000;
-
-        double lata_I2=Math.abs(lat);
-        //Log.w("Convert", "Lata_I2: "+lata_I2);
-        double latr_I3=lata_I2*Math.PI/180d;
-        //Log.w("Convert", "Latr_I3: "+latr_I3);
-
-        double lona_I4 = Math.abs(lon);
-        double dlon_I5=Math.abs(lon-meridian);
-        //Log.w("Convert", "dlon: "+dlon_I5);
-        double dlonr_I6=dlon_I5*Math.PI/180d;
-        //Log.w("Convert", "dlonr: "+dlonr_I6);
-
-        double part1=asinh(Math.tan(latr_I3));
-        double part2=e * atanh(e * Math.sin(latr_I3));
-        //Log.w("Convert", "part1: "+part1+" | part2: "+part2 + " e " + e);
-
-        double confLat_I7 = Math.atan(Math.sinh(asinh(Math.tan(latr_I3)) - e * atanh(e * Math.sin(latr_I3))));
-        //Log.w("Convert", "confLat_I7: "+confLat_I7);
+    /**
+     * UTM zone number for a longitude, 1 to 60
+     */
+    public static int zone(double lon){
+        int z=(int)Math.floor((lon+180)/6)+1;
+        if(z<1)z=1;
+        if(z>60)z=60;
+        return z;
+    }
 
-        //=SINH(e*ATANH(e*TAN(I3)/SQRT(1+TAN(I3)^2)))
-        double sigma_I8 = Math.sinh(e * atanh(e * Math.tan(latr_I3) / Math.sqrt(1 + Math.pow(Math.tan(latr_I3), 2))));
+    /**
+     * Central meridian of the UTM zone a longitude falls in, degrees
+     */
+    public static double centralMeridian(double lon){
+        return zone(lon)*6-183;
+    }
 
+    /**
+     * Switches single point conversions to a local projection for points inside its area,
+     * null goes back to the full conversion everywhere. Batch conversions always use the full one.
+     * Points outside the area are still converted in the projection's zone, the route's, so
+     * fixes and the route share one coordinate system near a zone line.
+     */
+    public static void setLocalProjection(LocalProjection p){
+        local=p;
+    }
 
-        //Log.w("Convert", "Sigma: " + sigma_I8);
-        double confLat_I9 = Math.atan(Math.tan(latr_I3) * Math.sqrt(1 + sigma_I8 * sigma_I8) - sigma_I8 * Math.sqrt(1 + Math.pow(Math.tan(latr_I3), 2)));
-        double tau_I10=Math.tan(latr_I3);
-        double tau_prime_I11=Math.tan(confLat_I9);
-        double xi_prime_I12=Math.atan(tau_prime_I11 / Math.cos(dlonr_I6));
-        double eta_prime_I13=asinh(Math.sin(dlonr_I6) / Math.sqrt(tau_prime_I11 * tau_prime_I11 + (Math.pow(Math.cos(dlonr_I6), 2))));
-        double xi_I14=xi_prime_I12 + alpha1 * Math.sin(2 * xi_prime_I12) * Math.cosh(2 * eta_prime_I13) + alpha2 * Math.sin(4 * xi_prime_I12) * Math.cosh(4 * eta_prime_I13) + alpha3 * Math.sin(6 * xi_prime_I12) * Math.cosh(6 * eta_prime_I13) + alpha4 * Math.sin(8 * xi_prime_I12) * Math.cosh(8 * eta_prime_I13) + alpha5 * Math.sin(10 * xi_prime_I12) * Math.cosh(10 * eta_prime_I13) + alpha6 * Math.sin(12 * xi_prime_I12) * Math.cosh(12 * eta_prime_I13) + alpha7 * Math.sin(14 * xi_prime_I12)*Math.cosh(14 * eta_prime_I13);
-        double eta_I15=eta_prime_I13+alpha1*Math.cos(2 * xi_prime_I12) * Math.sinh(2 * eta_prime_I13)+alpha2 * Math.cos(4 * xi_prime_I12) * Math.sinh(4 * eta_prime_I13)+alpha3 * Math.cos(6 * xi_prime_I12) * Math.sinh(6 * eta_prime_I13)+alpha4 * Math.cos(8 * xi_prime_I12) * Math.sinh(8 * eta_prime_I13)+alpha5 * Math.cos(10 * xi_prime_I12) * Math.sinh(10 * eta_prime_I13)+alpha6 * Math.cos(12 * xi_prime_I12) * Math.sinh(12 * eta_prime_I13)+alpha6 * Math.cos(14 * xi_prime_I12) * Math.sinh(14 * eta_prime_I13);
-        double easting=k0*AA*eta_I15;
-        double northing=k0*AA*xi_I14;
-        //easting=easting+falseEasting; For east of 0
-        easting=falseEasting+(-1.0*easting);
+    public static LocalProjection getLocalProjection(){
+        return local;
+    }
 
+    public static void latLon2UTM(LocationPoint loc){
+        LocalProjection p=local;
+        if(p!=null && p.contains(loc.lat, loc.lon)){
+            loc.setUTM(p.easting(loc.lat, loc.lon), p.northing(loc.lat, loc.lon));
+            loc.setMeridian(p.meridian);
+            return;
+        }
+        double meridian=p!=null ? p.meridian : centralMeridian(loc.lon);
+        double[] s=scratch.get();
+        project(loc.lat, loc.lon, meridian, s, s, 0, 1);
+        loc.setUTM(s[0],s[1]);
+        loc.setMeridian(meridian);
+    }
 
+    /**
+     * Converts a point about a given central meridian instead of its own zone's
+     * @param meridian Central meridian, degrees, such as a route's
+     * @param out Easting goes in out[0], northing in out[1]
+     */
+    public static void latLon2UTM(double lat, double lon, double meridian, double[] out){
+        project(lat, lon, meridian, out, out, 0, 1);
+    }
 
-        loc.setUTM(easting,northing);
-        loc.setMeridian(meridian);
+    /**
+     * Converts a batch of points in one pass. All the points use the zone of the first one so
+     * a route that crosses a zone line stays in one coordinate system.
+     * @param lat Latitudes, degrees
+     * @param lon Longitudes, degrees
+     * @param easting Filled in, may be the same length as lat
+     * @param northing Filled in
+     * @param count Number of points to convert
+     * @return The central meridian used, degrees
+     */
+    public static double latLon2UTM(double[] lat, double[] lon, double[] easting, double[] northing, int count){
+        if(count==0)return 0;
+        double meridian=centralMeridian(lon[0]);
+        for(int i=0;i<count;i++){
+            project(lat[i], lon[i], meridian, easting, northing, i, i);
+        }
+        return meridian;
+    }
+
+    /**
+     * The transverse Mercator projection about a meridian
+     * @param east Easting goes in east[ei]
+     * @param north Northing goes in north[ni]
+     */
+    static void project(double lat, double lon, double meridian, double[] east, double[] north, int ei, int ni){
+        double latr=lat*Math.PI/180d;
+        double dlonr=(lon-meridian)*Math.PI/180d;
+
+        //=SINH(e*ATANH(e*TAN(I3)/SQRT(1+TAN(I3)^2)))
+        double tau=Math.tan(latr);
+        double tauHyp=Math.sqrt(1+tau*tau);
+        double sigma=Math.sinh(e*atanh(e*tau/tauHyp));
+        double tauPrime=tau*Math.sqrt(1+sigma*sigma)-sigma*tauHyp; // tan of the conformal latitude
+
+        double cosDlon=Math.cos(dlonr);
+        double xiPrime=Math.atan2(tauPrime, cosDlon);
+        double etaPrime=asinh(Math.sin(dlonr)/Math.sqrt(tauPrime*tauPrime+cosDlon*cosDlon));
+
+        // Sum alpha_j sin(2j xi')cosh(2j eta') and alpha_j cos(2j xi')sinh(2j eta'), stepping the
+        // multiple angles with the addition formulas instead of calling the trig functions each term
+        double s1=Math.sin(2*xiPrime);
+        double c1=Math.cos(2*xiPrime);
+        double exp2=Math.exp(2*etaPrime);
+        double sh1=0.5*(exp2-1/exp2);
+        double ch1=0.5*(exp2+1/exp2);
+        double s=s1, c=c1, sh=sh1, ch=ch1;
+        double xi=xiPrime;
+        double eta=etaPrime;
+        for(int j=0;j<ALPHA.length;j++){
+            xi+=ALPHA[j]*s*ch;
+            eta+=ALPHA[j]*c*sh;
+            double sn=s*c1+c*s1;
+            double cn=c*c1-s*s1;
+            double shn=sh*ch1+ch*sh1;
+            double chn=ch*ch1+sh*sh1;
+            s=sn;
+            c=cn;
+            sh=shn;
+            ch=chn;
+        }
+
+        east[ei]=FALSE_EASTING+k0*AA*eta;
+        double northing=k0*AA*xi;
+        if(lat<0)northing+=FALSE_NORTHING_SOUTH;
+        north[ni]=northing;
     }
 
     private static double asinh(double x)
@@ -0,0 +1,162 @@
+package com.dataxign.mark.aasruckmarchpacer.geo;
+
+import android.util.Log;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Reads a GPX track or route into a Route. The file is pulled through one element at a time and
+ * points go straight into a LineSimplifier, so a dense recorded track never sits in memory whole.
+ *
+ * Points with a name or desc keep it as their description, and ele gives the route's grade profile. Named waypoints (wpt) are checkpoints:
+ * the first track point within waypointRadius of one is always kept and takes its name. Only
+ * waypoints that come before the track in the file can be matched, which is where GPX puts them.
+ */
+public class GpxImporter {
+
+    public double tolerance=2.0;       // Furthest a dropped point can be from the simplified route, metres
+    public double waypointRadius=15.0; // Furthest a track point can be from a waypoint to take its name, metres
+
+    // Named waypoints seen so far
+    private int waypoints=0;
+    private double[] wptLat=new double[16];
+    private double[] wptLon=new double[16];
+    private String[] wptName=new String[16];
+    private boolean[] wptUsed=new boolean[16];
+
+    /**
+     * True if a buffer looks like XML rather than a CSV or compiled route
+     */
+    public static boolean isGpx(ByteBuffer data){
+        int p=data.position();
+        int end=Math.min(data.limit(), p+256);
+        // Skip a byte order mark and whitespace
+        while(p<end && (data.get(p)==(byte)0xEF || data.get(p)==(byte)0xBB || data.get(p)==(byte)0xBF || data.get(p)<=' '))p++;
+        return p<end && data.get(p)=='<';
+    }
+
+    /**
+     * Reads a GPX stream into a route
+     * @param in GPX file, left open
+     * @param into Route to fill in, left undefined if the file has no track or route points
+     */
+    public void read(InputStream in, Route into) throws IOException{
+        LineSimplifier line=new LineSimplifier(tolerance);
+        String title=null;
+        try{
+            XmlPullParser xp=Xml.newPullParser();
+            xp.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            xp.setInput(in, null);
+
+            boolean inWpt=false, inPoint=false;
+            double lat=0, lon=0, ele=Double.NaN;
+            String name=null, desc=null;
+            int event=xp.getEventType();
+            while(event!=XmlPullParser.END_DOCUMENT){
+                if(event==XmlPullParser.START_TAG){
+                    String tag=xp.getName();
+                    if(tag.equals("trkpt") || tag.equals("rtept") || tag.equals("wpt")){
+                        String latText=xp.getAttributeValue(null, "lat");
+                        String lonText=xp.getAttributeValue(null, "lon");
+                        if(latText==null || lonText==null){
+                            throw new IOException("Bad GPX file, "+tag+" on line "+xp.getLineNumber()+" is missing lat/lon");
+                        }
+                        lat=Double.parseDouble(latText);
+                        lon=Double.parseDouble(lonText);
+                        ele=Double.NaN;
+                        name=null;
+                        desc=null;
+                        inWpt=tag.equals("wpt");
+                        inPoint=!inWpt;
+                    } else if(tag.equals("name")){
+                        if(inWpt || inPoint)name=xp.nextText().trim();
+                        else if(title==null)title=xp.nextText().trim();
+                    } else if(tag.equals("desc")){
+                        if(inWpt || inPoint)desc=xp.nextText().trim();
+                    } else if(tag.equals("ele")){
+                        if(inPoint)ele=Double.parseDouble(xp.nextText().trim());
+                    }
+                } else if(event==XmlPullParser.END_TAG){
+                    String tag=xp.getName();
+                    String label=name!=null && name.length()>0 ? name : (desc!=null && desc.length()>0 ? desc : null);
+                    if(inWpt && tag.equals("wpt")){
+                        if(label!=null)addWaypoint(lat, lon, label);
+                        inWpt=false;
+                    } else if(inPoint && (tag.equals("trkpt") || tag.equals("rtept"))){
+                        String checkpoint=matchWaypoint(lat, lon);
+                        if(label==null)label=checkpoint;
+                        line.add(lat, lon, ele, label!=null ? label : Route.NO_DESCRIPTION, label!=null);
+                        inPoint=false;
+                    }
+                }
+                event=xp.next();
+            }
+        } catch(XmlPullParserException e){
+            throw new IOException("Bad GPX file. "+e.getMessage());
+        } catch(NumberFormatException e){
+            throw new IOException("Bad GPX coordinate. "+e.getMessage());
+        }
+        line.finish();
+
+        if(line.count()<2){
+            Log.w("GpxImporter", "No track in GPX file");
+            return;
+        }
+        into.title=title!=null && title.length()>0 ? title : "GPX Route";
+        into.addPoints(line.lats(), line.lons(), line.alts(), line.descs(), line.count());
+        into.finish();
+        Log.d("GpxImporter", "Read "+into.title+", kept "+line.count()+" of "+line.pointsIn+" points");
+    }
+
+    private void addWaypoint(double lat, double lon, String name){
+        if(waypoints==wptLat.length){
+            wptLat=Arrays.copyOf(wptLat, waypoints*2);
+            wptLon=Arrays.copyOf(wptLon, waypoints*2);
+            wptName=Arrays.copyOf(wptName, waypoints*2);
+            wptUsed=Arrays.copyOf(wptUsed, waypoints*2);
+        }
+        wptLat[waypoints]=lat;
+        wptLon[waypoints]=lon;
+        wptName[waypoints]=name;
+        wptUsed[waypoints]=false;
+        waypoints++;
+    }
+
+    /**
+     * Name of the first unused waypoint within waypointRadius of a point, which is then used up
+     */
+    private String matchWaypoint(double lat, double lon){
+        double metresPerDegree=111319.49;
+        double xScale=metresPerDegree*Math.cos(Math.toRadians(lat));
+        double r2=waypointRadius*waypointRadius;
+        for(int i=0;i<waypoints;i++){
+            if(wptUsed[i])continue;
+            double dx=(wptLon[i]-lon)*xScale;
+            double dy=(wptLat[i]-lat)*metresPerDegree;
+            if(dx*dx+dy*dy<=r2){
+                wptUsed[i]=true;
+                return wptName[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Names of waypoints that no track point came near
+     */
+    public ArrayList<String> unmatchedWaypoints(){
+        ArrayList<String> out=new ArrayList<String>();
+        for(int i=0;i<waypoints;i++){
+            if(!wptUsed[i])out.add(wptName[i]);
+        }
+        return out;
+    }
+}
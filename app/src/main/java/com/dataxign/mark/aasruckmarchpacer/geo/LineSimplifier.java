@@ -0,0 +1,203 @@
+package com.dataxign.mark.aasruckmarchpacer.geo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Douglas-Peucker simplification of a stream of points, run over a window of the most recent
+ * points so memory stays bounded however long the track is. The window is simplified and
+ * emptied when it fills up or when a point that has to be kept arrives; its last point starts
+ * the next window so the output stays joined up.
+ *
+ * Distances are worked out in metres on a flat approximation about the first point, which is
+ * plenty for a tolerance of a few metres over a march route.
+ */
+class LineSimplifier {
+
+    static final int WINDOW=1024;
+
+    private static final double METRES_PER_DEGREE=111319.49;
+
+    private final double tolerance;
+
+    // Current window
+    private final double[] wLat=new double[WINDOW];
+    private final double[] wLon=new double[WINDOW];
+    private final double[] wAlt=new double[WINDOW];
+    private final double[] wx=new double[WINDOW];
+    private final double[] wy=new double[WINDOW];
+    private final String[] wDesc=new String[WINDOW];
+    private final boolean[] keep=new boolean[WINDOW];
+    private final int[] stack=new int[2*WINDOW];
+    private int size=0;
+
+    private boolean started=false;
+    private double lat0, lon0, xScale;
+
+    // Kept points, see lats(), lons(), alts() and descs()
+    private double[] outLat=new double[256];
+    private double[] outLon=new double[256];
+    private double[] outAlt=new double[256];
+    private final ArrayList<String> outDesc=new ArrayList<String>(256);
+    private int outCount=0;
+
+    int pointsIn=0;
+
+    /**
+     * @param tolerance Furthest a dropped point can be from the simplified line, metres.
+     * 0 or less keeps every point except exact repeats.
+     */
+    LineSimplifier(double tolerance){
+        this.tolerance=tolerance;
+    }
+
+    /**
+     * Adds the next point of the line
+     * @param alt Altitude, carried along with the point, NaN if unknown
+     * @param desc Description, kept with the point if it survives
+     * @param force Always keep this point, for checkpoints
+     */
+    void add(double lat, double lon, double alt, String desc, boolean force){
+        pointsIn++;
+        if(!started){
+            started=true;
+            lat0=lat;
+            lon0=lon;
+            xScale=METRES_PER_DEGREE*Math.cos(Math.toRadians(lat));
+        }
+        // Exact repeats make zero length segments, drop them unless they carry a checkpoint
+        if(size>0 && wLat[size-1]==lat && wLon[size-1]==lon){
+            if(force){
+                wDesc[size-1]=desc;
+                flush(false);
+            }
+            return;
+        }
+        wLat[size]=lat;
+        wLon[size]=lon;
+        wAlt[size]=alt;
+        wx[size]=(lon-lon0)*xScale;
+        wy[size]=(lat-lat0)*METRES_PER_DEGREE;
+        wDesc[size]=desc;
+        size++;
+        if(force || size==WINDOW)flush(false);
+    }
+
+    /**
+     * Simplifies what is left in the window. Call once after the last point.
+     */
+    void finish(){
+        flush(true);
+    }
+
+    int count(){
+        return outCount;
+    }
+
+    double[] lats(){
+        return outLat;
+    }
+
+    double[] lons(){
+        return outLon;
+    }
+
+    double[] alts(){
+        return outAlt;
+    }
+
+    ArrayList<String> descs(){
+        return outDesc;
+    }
+
+    /**
+     * Simplifies the window and moves the kept points to the output. Unless this is the end,
+     * the window's last point is held back to start the next window.
+     */
+    private void flush(boolean last){
+        if(size==0)return;
+        Arrays.fill(keep, 0, size, false);
+        keep[0]=true;
+        keep[size-1]=true;
+
+        // Iterative Douglas-Peucker, the stack holds (first, last) pairs still to check
+        int top=0;
+        if(size>2){
+            stack[top++]=0;
+            stack[top++]=size-1;
+        }
+        while(top>0){
+            int b=stack[--top];
+            int a=stack[--top];
+            int worst=-1;
+            double worstDist=tolerance;
+            for(int i=a+1;i<b;i++){
+                double d=distance(i, a, b);
+                if(d>worstDist){
+                    worst=i;
+                    worstDist=d;
+                }
+            }
+            if(worst<0)continue;
+            keep[worst]=true;
+            if(worst-a>1){
+                stack[top++]=a;
+                stack[top++]=worst;
+            }
+            if(b-worst>1){
+                stack[top++]=worst;
+                stack[top++]=b;
+            }
+        }
+
+        int end=last ? size : size-1;
+        for(int i=0;i<end;i++){
+            if(keep[i])emit(i);
+        }
+        if(last){
+            size=0;
+        } else {
+            wLat[0]=wLat[size-1];
+            wLon[0]=wLon[size-1];
+            wAlt[0]=wAlt[size-1];
+            wx[0]=wx[size-1];
+            wy[0]=wy[size-1];
+            wDesc[0]=wDesc[size-1];
+            size=1;
+        }
+    }
+
+    /**
+     * Distance from window point i to the line segment from point a to point b, metres
+     */
+    private double distance(int i, int a, int b){
+        double dx=wx[b]-wx[a];
+        double dy=wy[b]-wy[a];
+        double px=wx[i]-wx[a];
+        double py=wy[i]-wy[a];
+        double lsq=dx*dx+dy*dy;
+        if(lsq>0){
+            double t=(px*dx+py*dy)/lsq;
+            if(t>1){
+                px=wx[i]-wx[b];
+                py=wy[i]-wy[b];
+            } else if(t>0){
+                return Math.abs(px*dy-py*dx)/Math.sqrt(lsq);
+            }
+        }
+        return Math.sqrt(px*px+py*py);
+    }
+
+    private void emit(int i){
+        if(outCount==outLat.length){
+            outLat=Arrays.copyOf(outLat, outCount*2);
+            outLon=Arrays.copyOf(outLon, outCount*2);
+            outAlt=Arrays.copyOf(outAlt, outCount*2);
+        }
+        outLat[outCount]=wLat[i];
+        outLon[outCount]=wLon[i];
+        outAlt[outCount]=wAlt[i];
+        outDesc.add(wDesc[i]);
+        outCount++;
+    }
+}
@@ -0,0 +1,153 @@
+package com.dataxign.mark.aasruckmarchpacer.geo;
+
+import android.util.Log;
+
+/**
+ * A cheap stand-in for the full UTM conversion over a small area, such as one march route.
+ * Easting and northing are fitted as quadratics in latitude and longitude about an anchor point,
+ * so points come out in the same UTM coordinates the route uses, but a conversion is a dozen
+ * multiplies instead of the transverse Mercator series.
+ *
+ * The fit is checked against DegreesToUTM over the whole area when it is made and the worst
+ * difference is kept in maxError. Points outside the area are not covered by that bound, so
+ * DegreesToUTM falls back to the full conversion for them.
+ */
+public class LocalProjection {
+
+    private static final int FIT_STEPS=8;    // Fit grid is (FIT_STEPS+1)^2 points
+    private static final int CHECK_STEPS=24; // Error check grid is (CHECK_STEPS+1)^2 points
+
+    public final double lat0, lon0;
+    public final double meridian;
+    public final double halfLat, halfLon; // Half size of the area, degrees
+    public final double maxError;         // Worst difference from DegreesToUTM inside the area, metres
+
+    private final double invHalfLat, invHalfLon;
+    private final double[] ce=new double[6]; // Easting = ce[0] + ce[1]x + ce[2]y + ce[3]x^2 + ce[4]xy + ce[5]y^2
+    private final double[] cn=new double[6]; // with x, y the offsets from the anchor scaled to -1..1
+
+    /**
+     * Fits a projection over a square area
+     * @param lat0 Anchor latitude, degrees
+     * @param lon0 Anchor longitude, degrees
+     * @param meridian Central meridian to match, degrees
+     * @param halfSizeMetres Half the width of the area, metres
+     */
+    public LocalProjection(double lat0, double lon0, double meridian, double halfSizeMetres){
+        this.lat0=lat0;
+        this.lon0=lon0;
+        this.meridian=meridian;
+        halfLat=halfSizeMetres/111000.0;
+        halfLon=halfSizeMetres/(111000.0*Math.cos(Math.toRadians(lat0)));
+        invHalfLat=1/halfLat;
+        invHalfLon=1/halfLon;
+        fit();
+        maxError=check();
+        Log.d("LocalProjection", "Fitted "+Math.round(2*halfSizeMetres)+"m area at "+lat0+", "+lon0+", max error "+maxError+"m");
+    }
+
+    /**
+     * True if the point is inside the fitted area
+     */
+    public boolean contains(double lat, double lon){
+        return Math.abs(lat-lat0)<=halfLat && Math.abs(lon-lon0)<=halfLon;
+    }
+
+    public double easting(double lat, double lon){
+        double x=(lat-lat0)*invHalfLat;
+        double y=(lon-lon0)*invHalfLon;
+        return ce[0]+x*(ce[1]+ce[3]*x+ce[4]*y)+y*(ce[2]+ce[5]*y);
+    }
+
+    public double northing(double lat, double lon){
+        double x=(lat-lat0)*invHalfLat;
+        double y=(lon-lon0)*invHalfLon;
+        return cn[0]+x*(cn[1]+cn[3]*x+cn[4]*y)+y*(cn[2]+cn[5]*y);
+    }
+
+    /**
+     * Least squares fit of both quadratics to the full conversion on a grid over the area
+     */
+    private void fit(){
+        double[][] ata=new double[6][6];
+        double[] ate=new double[6];
+        double[] atn=new double[6];
+        double[] row=new double[6];
+        double[] e=new double[1];
+        double[] n=new double[1];
+        for(int i=0;i<=FIT_STEPS;i++){
+            for(int j=0;j<=FIT_STEPS;j++){
+                double x=-1+2.0*i/FIT_STEPS;
+                double y=-1+2.0*j/FIT_STEPS;
+                DegreesToUTM.project(lat0+x*halfLat, lon0+y*halfLon, meridian, e, n, 0, 0);
+                terms(x, y, row);
+                for(int r=0;r<6;r++){
+                    for(int c=0;c<6;c++)ata[r][c]+=row[r]*row[c];
+                    ate[r]+=row[r]*e[0];
+                    atn[r]+=row[r]*n[0];
+                }
+            }
+        }
+        solve(ata, ate, atn);
+    }
+
+    private static void terms(double x, double y, double[] row){
+        row[0]=1;
+        row[1]=x;
+        row[2]=y;
+        row[3]=x*x;
+        row[4]=x*y;
+        row[5]=y*y;
+    }
+
+    /**
+     * Gaussian elimination with partial pivoting, solving for both right hand sides at once
+     */
+    private void solve(double[][] a, double[] be, double[] bn){
+        int size=a.length;
+        for(int col=0;col<size;col++){
+            int pivot=col;
+            for(int r=col+1;r<size;r++){
+                if(Math.abs(a[r][col])>Math.abs(a[pivot][col]))pivot=r;
+            }
+            double[] t=a[col]; a[col]=a[pivot]; a[pivot]=t;
+            double s=be[col]; be[col]=be[pivot]; be[pivot]=s;
+            s=bn[col]; bn[col]=bn[pivot]; bn[pivot]=s;
+            for(int r=col+1;r<size;r++){
+                double m=a[r][col]/a[col][col];
+                for(int c=col;c<size;c++)a[r][c]-=m*a[col][c];
+                be[r]-=m*be[col];
+                bn[r]-=m*bn[col];
+            }
+        }
+        for(int r=size-1;r>=0;r--){
+            double se=be[r], sn=bn[r];
+            for(int c=r+1;c<size;c++){
+                se-=a[r][c]*ce[c];
+                sn-=a[r][c]*cn[c];
+            }
+            ce[r]=se/a[r][r];
+            cn[r]=sn/a[r][r];
+        }
+    }
+
+    /**
+     * Worst distance between this projection and the full conversion on a finer grid
+     */
+    private double check(){
+        double[] e=new double[1];
+        double[] n=new double[1];
+        double worst=0;
+        for(int i=0;i<=CHECK_STEPS;i++){
+            for(int j=0;j<=CHECK_STEPS;j++){
+                double lat=lat0+(-1+2.0*i/CHECK_STEPS)*halfLat;
+                double lon=lon0+(-1+2.0*j/CHECK_STEPS)*halfLon;
+                DegreesToUTM.project(lat, lon, meridian, e, n, 0, 0);
+                double de=easting(lat, lon)-e[0];
+                double dn=northing(lat, lon)-n[0];
+                worst=Math.max(worst, Math.sqrt(de*de+dn*dn));
+            }
+        }
+        return worst;
+    }
+}
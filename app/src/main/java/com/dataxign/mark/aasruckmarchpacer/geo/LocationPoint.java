@@ -10,6 +10,7 @@ public class LocationPoint {
     public double easting=0,northing=0;
     double meridian;
     public String description="UNDEFINED";
+    public double altitude=Double.NaN; // Metres, NaN if the route file has no altitude
 
     // Fields to store data regarding users movement
     public double speedms;
@@ -41,6 +42,7 @@ public class LocationPoint {
         p.northing=this.northing;
         p.meridian=this.meridian;
         p.description=this.description;
+        p.altitude=this.altitude;
         p.speedms=this.speedms;
         p.speedmph=this.speedmph;
         p.bearing=this.bearing;
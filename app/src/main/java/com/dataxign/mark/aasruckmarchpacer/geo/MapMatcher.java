@@ -0,0 +1,210 @@
+package com.dataxign.mark.aasruckmarchpacer.geo;
+
+import android.util.Log;
+
+/**
+ * Matches a stream of fixes to a route with an online Viterbi decoder over a hidden Markov model.
+ * The hidden state is a point on the route. Each fix has up to BEAM candidate points, the closest
+ * points on the segments within radius of it, so corners and noisy fixes that don't project onto
+ * any one segment still match.
+ *
+ * A candidate's emission score falls off with its distance from the fix (Gaussian, sigma). Moving
+ * between candidates of consecutive fixes scores by how far the route distance between them
+ * differs from the straight line distance between the fixes, capped at what maxSpeed allows in
+ * the time between them (exponential, beta). Every metre back along the route costs backPenalty
+ * times more, so the path keeps moving forward through loops and out and back legs.
+ *
+ * Only the last LAG+1 fixes are kept. Each update reports the end of the best path so far, and
+ * lagged holds the best path's position LAG fixes back, which later fixes have had the chance to
+ * correct. Both reported positions only move forward and no faster than maxSpeed, so GPS jumps
+ * along the route don't make them jump. Memory and work per fix are fixed by BEAM and LAG
+ * whatever the route length.
+ */
+public class MapMatcher {
+
+    public static final int BEAM=8; // Most candidates per fix
+    public static final int LAG=4;  // Fixes between a fix and its final decision
+
+    public double sigma=10;          // GPS error, metres
+    public double beta=5;            // Scale of the route versus straight line difference, metres
+    public double radius=50;         // Furthest a fix can be from the route and still match, metres
+    public double maxSpeed=3.5;      // Fastest a marcher moves along the route, m/s
+    public double backPenalty=2;     // Extra cost per metre back along the route, times 1/beta
+    public double restartScale=100;  // Scale of the distance from the last position when restarting, metres
+    public double outlierScore=30;   // A fix that costs the best path more than this is skipped
+    public int maxMisses=5;          // Fixes skipped or off the route in a row before starting a new path
+
+    private final Route route;
+
+    // Ring of the last LAG+1 steps, slot head is the newest. The slot after head is filled
+    // by the next fix and only becomes head if the fix is kept
+    private static final int SLOTS=LAG+2;
+    private final double[][] progress=new double[SLOTS][BEAM];
+    private final double[][] offset=new double[SLOTS][BEAM];
+    private final double[][] score=new double[SLOTS][BEAM];
+    private final int[][] back=new int[SLOTS][BEAM];
+    private final int[] size=new int[SLOTS];
+    private final double[] seconds=new double[SLOTS]; // Time since the step before
+    private int head=0;
+    private int steps=0;
+
+    private double lastE, lastN;
+    private double elapsed=0; // Seconds since the last kept fix
+    private int misses=0;
+
+    // Candidate query output
+    private final int[] cSeg=new int[BEAM];
+    private final double[] cAlong=new double[BEAM];
+    private final double[] cDist=new double[BEAM];
+
+    // Last reported positions
+    private final SnapResult reported=new SnapResult();
+    public final SnapResult lagged=new SnapResult();
+
+    public MapMatcher(Route route){
+        this.route=route;
+    }
+
+    /**
+     * Forgets the fixes so far, the next fix starts a new path near the last reported position
+     */
+    public void reset(){
+        steps=0;
+        misses=0;
+    }
+
+    /**
+     * Matches the next fix
+     * @param e Easting of the fix
+     * @param n Northing of the fix
+     * @param dt Seconds since the previous fix
+     * @param out Filled in with the matched position. A fix skipped as an outlier repeats the
+     *            last position, segment is -1 if the fix is too far from the route.
+     * @return True if the fix matched
+     */
+    public boolean update(double e, double n, double dt, SnapResult out){
+        elapsed+=Math.max(0, dt);
+        int k=route.near(e, n, radius, BEAM, cSeg, cAlong, cDist);
+        if(k==0){
+            if(++misses>maxMisses)steps=0;
+            out.segment=-1;
+            return false;
+        }
+
+        int prev=head;
+        int slot=(head+1)%SLOTS;
+        double straight=Math.sqrt((e-lastE)*(e-lastE)+(n-lastN)*(n-lastN));
+        double expected=Math.min(straight, maxSpeed*elapsed);
+        double invSigmaSq=1/(sigma*sigma);
+        for(int j=0;j<k;j++){
+            progress[slot][j]=route.progress(cSeg[j], cAlong[j]);
+            offset[slot][j]=cDist[j];
+            double emission=-0.5*cDist[j]*cDist[j]*invSigmaSq;
+
+            int from=-1;
+            double best=Double.NEGATIVE_INFINITY;
+            for(int i=0;steps>0 && i<size[prev];i++){
+                double moved=progress[slot][j]-progress[prev][i];
+                double cost=Math.abs(moved-expected);
+                if(moved<0)cost-=backPenalty*moved;
+                double s=score[prev][i]-cost/beta;
+                if(s>best){
+                    best=s;
+                    from=i;
+                }
+            }
+            back[slot][j]=from;
+            score[slot][j]=best+emission;
+        }
+
+        // The best path scored 0 after the last fix, so top is what this fix cost it. A fix
+        // that only fits far off the path (multipath, another leg nearby) is skipped and
+        // leaves the path as it was, unless that keeps happening
+        int best=0;
+        for(int j=1;j<k;j++){
+            if(score[slot][j]>score[slot][best])best=j;
+        }
+        double top=score[slot][best];
+        if(steps>0 && top<-outlierScore && misses<maxMisses){
+            misses++;
+            copy(reported, out);
+            out.offset=offset[slot][best];
+            return false;
+        }
+        misses=0;
+
+        head=slot;
+        size[head]=k;
+        seconds[head]=elapsed;
+        if(steps>0){
+            steps=Math.min(steps+1, LAG+1);
+        } else {
+            best=restart();
+            top=score[head][best];
+        }
+        lastE=e;
+        lastN=n;
+        elapsed=0;
+
+        // Keep the scores near 0 so they don't drift
+        for(int j=0;j<k;j++)score[head][j]-=top;
+
+        report(progress[head][best], seconds[head], reported);
+        copy(reported, out);
+        out.offset=offset[head][best];
+
+        // Trace the best path back to the lagged decision
+        if(steps==LAG+1){
+            int s=head, j=best;
+            for(int step=0;step<LAG;step++){
+                j=back[s][j];
+                s=(s+SLOTS-1)%SLOTS;
+            }
+            report(progress[s][j], seconds[s], lagged);
+            lagged.offset=offset[s][j];
+        }
+        return true;
+    }
+
+    /**
+     * Starts a new path from the head step, for the first fix or after losing the route.
+     * Candidates score by emission plus closeness to where the marcher was last reported.
+     * @return The best candidate
+     */
+    private int restart(){
+        double invSigmaSq=1/(sigma*sigma);
+        double resume=reported.onRoute() ? reported.progress : 0;
+        int best=0;
+        for(int j=0;j<size[head];j++){
+            double d=offset[head][j];
+            back[head][j]=-1;
+            score[head][j]=-0.5*d*d*invSigmaSq-Math.abs(progress[head][j]-resume)/restartScale;
+            if(score[head][j]>score[head][best])best=j;
+        }
+        steps=1;
+        Log.d("MapMatcher", "Starting a new path from "+size[head]+" candidates");
+        return best;
+    }
+
+    /**
+     * Moves a reported position toward a matched route distance, never back and no faster than
+     * maxSpeed
+     * @param target Matched route distance, metres
+     * @param dt Seconds since the last report
+     */
+    private void report(double target, double dt, SnapResult last){
+        double p=target;
+        if(last.onRoute()){
+            p=Math.max(last.progress, Math.min(p, last.progress+maxSpeed*dt));
+        }
+        route.locate(p, last);
+    }
+
+    private static void copy(SnapResult from, SnapResult to){
+        to.segment=from.segment;
+        to.along=from.along;
+        to.progress=from.progress;
+        to.easting=from.easting;
+        to.northing=from.northing;
+    }
+}
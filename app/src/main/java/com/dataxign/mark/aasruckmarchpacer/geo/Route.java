@@ -1,5 +1,6 @@
 package com.dataxign.mark.aasruckmarchpacer.geo;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
 import android.net.Uri;
@@ -7,13 +8,21 @@ import android.util.Log;
 
 import com.dataxign.mark.aasruckmarchpacer.R;
 
+import com.dataxign.mark.aasruckmarchpacer.functions.ContentCache;
+
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.StringTokenizer;
+import java.util.Arrays;
 
 /**
  * Created by Mark on 3/20/2016.
@@ -22,6 +31,10 @@ import java.util.StringTokenizer;
  * Edited on 6/4/2022 by Peter Finch
  */
 public class Route {
+    public static final int MAGIC=0x4F504152; // "OPAR"
+    public static final int VERSION=2;
+    public static final String NO_DESCRIPTION=".";
+
     public ArrayList<Segment> route;
     public boolean routeDefined=false;
     public String title="UNDEFINED";
@@ -39,6 +52,27 @@ public class Route {
     public int currentSegment=-1;
     public double distanceCurrentSegment=0;
 
+    // Snap by following on from the last snapped segment, see SegmentIndex.track()
+    public boolean tracking=true;
+
+    // Segment geometry as parallel arrays, filled in by addSegment
+    private int count=0;
+    private double[] startE=new double[16];
+    private double[] startN=new double[16];
+    private double[] dirE=new double[16];      // End minus start
+    private double[] dirN=new double[16];
+    private double[] invLenSq=new double[16];  // 1/length^2, 0 for zero length segments
+    private double[] length=new double[16];
+    private double[] cumulative=new double[17]; // Route distance to the start of each segment, [count] is the total
+    private double[] grade=new double[16];      // Rise over run in percent, 0 where the altitude isn't known
+    private boolean hasGrades=false;
+
+    private SegmentIndex index;
+    private double lastAlong=0;
+
+    private static final Charset UTF8=Charset.forName("UTF-8");
+    private static final double MAX_EXTENT_METRES=1000000; // Wider than a UTM zone, so no real route comes close
+
     /**
      * First constructor that takes no arguments
      */
@@ -47,30 +81,64 @@ public class Route {
     }
 
     /**
-     * Second constructor that takes two arguments
+     * Second constructor, the route bundled with the app: the Ft. Campbell march with its
+     * altitudes, so the metabolic rate follows the grades
      * @param rs App resources
      */
     public Route(Resources rs){
+        this(rs, R.raw.route_ft_campbell_grades);
+    }
+
+    /**
+     * Loads a CSV route bundled in res/raw
+     * @param rs App resources
+     * @param id Raw resource id of the route
+     */
+    public Route(Resources rs, int id){
         route=new ArrayList<Segment>(2);
-        BufferedReader in = new BufferedReader(new InputStreamReader(rs.openRawResource(R.raw.route_natick)));
-        generateRouteFromFile(in);
+        BufferedReader in = new BufferedReader(new InputStreamReader(rs.openRawResource(id)));
+        try {
+            generateRouteFromFile(in);
+        } finally {
+            try { in.close(); } catch (IOException e) { Log.w("Route", "Failed to close route resource"); }
+        }
     }
 
     /**
      * Third constructor. This is for loading a route from a file picker.
+     * Compiled routes are read directly, CSV and GPX routes are compiled once and kept in the route cache.
      * @param uri the uri of the route file
      */
-    public Route(Uri uri, Context context) {
+    public Route(final Uri uri, Context context) {
         route=new ArrayList<Segment>(2);
+        final ContentResolver resolver = context.getContentResolver();
+        RouteCache.Source source = new RouteCache.Source() {
+            public InputStream open() throws IOException {
+                InputStream is = resolver.openInputStream(uri);
+                if (is == null) throw new FileNotFoundException("No content at " + uri);
+                return is;
+            }
+        };
         try {
-            InputStream is = context.getContentResolver().openInputStream(uri);
-            BufferedReader in = new BufferedReader(new InputStreamReader(is));
-            generateRouteFromFile(in);
+            InputStream is = new BufferedInputStream(source.open());
+            try {
+                if (isBinary(ContentCache.peek(is, 4))) generateRouteFromBinary(ContentCache.readFully(is));
+                else new RouteCache(context).load(source, this);
+            } finally {
+                is.close();
+            }
         } catch (FileNotFoundException e) {
             Log.e("Route","Failed to open file input stream. IOException.");
+        } catch (IOException e) {
+            Log.e("Route", "Uh Oh Can't read route file. This is BAD! " + e.getMessage());
         }
     }
 
+    /**
+     * Reads a CSV route: a title row, a header row, then Point,Lat,Lon,Description rows.
+     * An Altitude (or Elevation) column in metres, found by its header, gives the grade profile.
+     * Empty fields are kept, so a blank description doesn't shift the columns after it.
+     */
     public void generateRouteFromFile(BufferedReader in){
         Log.d("Route", "Reading route file...");
 
@@ -78,55 +146,49 @@ public class Route {
         try{
             //First Row Title
             String row=in.readLine();
-            StringTokenizer st=new StringTokenizer(row,",");
-            title=st.nextToken();
+            title=row.split(",", -1)[0];
 
-            //Second Row Header
+            //Second Row Header, look for an altitude column
             row=in.readLine();
+            int altColumn=-1;
+            String[] header=row.split(",", -1);
+            for(int i=0;i<header.length;i++){
+                String h=header[i].trim();
+                if(h.equalsIgnoreCase("Altitude") || h.equalsIgnoreCase("Elevation"))altColumn=i;
+            }
 
-            //Remaining rows are LocationPoints in sequence
-            boolean endReached=false;
-            boolean firstPoint=true;
-            LocationPoint lastPoint=null;
-            while(!endReached){
+            //Remaining rows are LocationPoints in sequence. Read them all first so they can
+            //be converted to UTM in one batch
+            int n=0;
+            double[] lats=new double[256];
+            double[] lons=new double[256];
+            double[] alts=altColumn>=0 ? new double[256] : null;
+            ArrayList<String> descs=new ArrayList<String>(256);
+            while(true){
                 // Read in a row
                 row = in.readLine();
 
                 // Check the row isn't empty
                 if(row == null) { break; }
+                if(row.trim().length()==0) { continue; }
 
                 // Parse the row using "," as delimiter
-                st=new StringTokenizer(row,",");
-                int pointID=Integer.parseInt(st.nextToken());
-                double lat=Double.parseDouble(st.nextToken());
-                double lon=Double.parseDouble(st.nextToken());
-                String desc=st.nextToken();
-
-                // Initialize new LocationPoint with data that was just parsed
-                LocationPoint currentPoint=new LocationPoint(lat,lon);
-                currentPoint.description=desc;
-
-                // Checking if any of the values read are min / max values
-                if(max_easting<currentPoint.easting)max_easting=currentPoint.easting;
-                if(min_easting>currentPoint.easting)min_easting=currentPoint.easting;
-                if(max_northing<currentPoint.northing)max_northing=currentPoint.northing;
-                if(min_northing>currentPoint.northing)min_northing=currentPoint.northing;
-
-                //A point has been successfully read. If it is the first point then
-                //store as last location and move on
-                if(firstPoint){
-                    firstPoint=false;
-                    lastPoint=currentPoint.copyOf();
-                }
-                else{
-                    //generate a new route segment
-                    Segment seg=new Segment(lastPoint,currentPoint);
-                    addSegment(seg);
-                    lastPoint=currentPoint.copyOf();
+                String[] f=row.split(",", -1);
+                int pointID=Integer.parseInt(f[0].trim());
+                if(n==lats.length){
+                    lats=Arrays.copyOf(lats, n*2);
+                    lons=Arrays.copyOf(lons, n*2);
+                    if(alts!=null)alts=Arrays.copyOf(alts, n*2);
                 }
+                lats[n]=Double.parseDouble(f[1]);
+                lons[n]=Double.parseDouble(f[2]);
+                String desc=f.length>3 ? f[3].trim() : "";
+                descs.add(desc.length()>0 ? desc : NO_DESCRIPTION);
+                if(alts!=null)alts[n]=altColumn<f.length && f[altColumn].trim().length()>0 ? Double.parseDouble(f[altColumn]) : Double.NaN;
+                n++;
             }
-            computeExtent();
-            routeDefined=true;
+            addPoints(lats, lons, alts, descs, n);
+            finish();
         }
         // If we couldn't read the route file
         catch(IOException e){
@@ -135,92 +197,401 @@ public class Route {
 
     }
 
-    public LocationPoint snapToLine(LocationPoint p){
-        LocationPoint sn=new LocationPoint();
-        ArrayList<Integer> possSegments = new ArrayList<Integer>(2);
-        ArrayList<Double> perpDist=new ArrayList<Double>(2);
-        int smallestStart=9999999;
-        int smSidx=0;
-        int smallestEnd=9999999;
-        int smEidx=0;
-        int smallestPerpendicular=9999999;
-        int smP=0;
-
-        for(int i=0;i<route.size();i++){
-            Segment s=route.get(i);
-            double distance= findPerpendicularDistanceToSegment(p, s);
-            double distFromStart=findDistanceFromStartOfLineSegment(p,s);
-            double distFromEnd=findDistanceFromEndOfLineSegment(p,s);
-            Log.v("Route","Segment: "+i+" Distance: Perpen.= "+ distance +" From Start = "+distFromStart +" From End = "+distFromEnd);
-
-            if(Math.abs(s.distance-(distFromStart+distFromEnd))<0.1){
-                possSegments.add(new Integer(i));
-                perpDist.add(new Double(distance));
+    /**
+     * Checks for the compiled route magic number at the start of a buffer
+     */
+    public static boolean isBinary(ByteBuffer data){
+        return data.remaining()>=4 && data.getInt(data.position())==MAGIC;
+    }
+
+    /**
+     * Writes this route in the compiled format (big-endian):
+     *  int magic ("OPAR"), int version, int points, double meridian,
+     *  double min easting, max easting, min northing, max northing, title,
+     *  then double blocks of point lat, lon, easting, northing, segment length, heading,
+     *  the cumulative distance to each point, each point's description, and (version 2) a
+     *  block of point altitudes, NaN where unknown.
+     *  Strings are an int byte count followed by UTF-8.
+     * @param os Stream to write to, left open
+     */
+    public void write(OutputStream os) throws IOException{
+        DataOutputStream out=new DataOutputStream(os);
+        int points=count==0 ? 0 : count+1;
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(points);
+        out.writeDouble(points==0 ? 0 : route.get(0).start.meridian);
+        out.writeDouble(min_easting);
+        out.writeDouble(max_easting);
+        out.writeDouble(min_northing);
+        out.writeDouble(max_northing);
+        writeString(out, title);
+        for(int i=0;i<points;i++)out.writeDouble(point(i).lat);
+        for(int i=0;i<points;i++)out.writeDouble(point(i).lon);
+        for(int i=0;i<points;i++)out.writeDouble(point(i).easting);
+        for(int i=0;i<points;i++)out.writeDouble(point(i).northing);
+        for(int i=0;i<count;i++)out.writeDouble(length[i]);
+        for(int i=0;i<count;i++)out.writeDouble(route.get(i).heading);
+        for(int i=0;i<points;i++)out.writeDouble(cumulative[i]);
+        for(int i=0;i<points;i++)writeString(out, point(i).description);
+        for(int i=0;i<points;i++)out.writeDouble(point(i).altitude);
+        out.flush();
+    }
+
+    private LocationPoint point(int i){
+        return i<count ? route.get(i).start : route.get(count-1).end;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException{
+        byte[] b=s.getBytes(UTF8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException{
+        int n=in.getInt();
+        if(n<0 || n>in.remaining())throw new IOException("Bad string in compiled route");
+        byte[] b=new byte[n];
+        in.get(b);
+        return new String(b, UTF8);
+    }
+
+    private static double[] readDoubles(ByteBuffer in, int n, int capacity){
+        double[] d=new double[capacity];
+        in.asDoubleBuffer().get(d, 0, n);
+        in.position(in.position()+n*8);
+        return d;
+    }
+
+    /**
+     * Loads a compiled route, see write(). The coordinates are already projected and the
+     * segment table is read in bulk, so nothing is converted or recomputed per point.
+     * The route is left as it was if the buffer can't be read.
+     * @param buf Buffer positioned at the magic number
+     * @throws IOException if the header is bad, the buffer is too short or the content is corrupt
+     */
+    public void generateRouteFromBinary(ByteBuffer buf) throws IOException{
+        ByteBuffer in=buf.duplicate();
+        String name;
+        double meridian, minE, maxE, minN, maxN;
+        int points, segments, capacity;
+        double[] lats, lons, eastings, northings, lengths, headings, distances, alts;
+        ArrayList<Segment> segs;
+        try{
+            if(in.getInt()!=MAGIC)throw new IOException("Not a compiled route");
+            int version=in.getInt();
+            if(version<1 || version>VERSION)throw new IOException("Unsupported compiled route version "+version);
+            points=in.getInt();
+            if(points<2)throw new IOException("Compiled route has "+points+" points, a route needs at least 2");
+            if((long)points*8*7>in.remaining())throw new IOException("Compiled route is truncated");
+            meridian=in.getDouble();
+            minE=in.getDouble();
+            maxE=in.getDouble();
+            minN=in.getDouble();
+            maxN=in.getDouble();
+            name=readString(in);
+
+            segments=points-1;
+            capacity=Math.max(16, points);
+            lats=readDoubles(in, points, points);
+            lons=readDoubles(in, points, points);
+            eastings=readDoubles(in, points, capacity);
+            northings=readDoubles(in, points, capacity);
+            lengths=readDoubles(in, segments, capacity);
+            headings=readDoubles(in, segments, segments);
+            distances=readDoubles(in, points, capacity+1);
+            checkGeometry(eastings, northings, lengths, points, minE, maxE, minN, maxN);
+
+            segs=new ArrayList<Segment>(segments);
+            LocationPoint lastPoint=null;
+            for(int i=0;i<points;i++){
+                LocationPoint p=new LocationPoint();
+                p.lat=lats[i];
+                p.lon=lons[i];
+                p.setUTM(eastings[i], northings[i]);
+                p.setMeridian(meridian);
+                p.description=readString(in);
+                if(lastPoint!=null)segs.add(new Segment(lastPoint, p, lengths[i-1], headings[i-1]));
+                lastPoint=p;
+            }
+            alts=null;
+            if(version>=2){
+                alts=readDoubles(in, points, points);
+                for(int i=0;i<points;i++)(i<segments ? segs.get(i).start : segs.get(segments-1).end).altitude=alts[i];
             }
+        } catch(BufferUnderflowException e){
+            throw new IOException("Compiled route is truncated");
+        } catch(RuntimeException e){
+            // A bad string length and the like from a corrupt file
+            throw new IOException("Compiled route is corrupt. "+e);
+        }
 
+        title=name;
+        min_easting=minE;
+        max_easting=maxE;
+        min_northing=minN;
+        max_northing=maxN;
+        route=segs;
+
+        // The start arrays are the point arrays, directions come from neighbouring points
+        startE=eastings;
+        startN=northings;
+        length=lengths;
+        cumulative=distances;
+        dirE=new double[capacity];
+        dirN=new double[capacity];
+        invLenSq=new double[capacity];
+        for(int i=0;i<segments;i++){
+            dirE[i]=eastings[i+1]-eastings[i];
+            dirN[i]=northings[i+1]-northings[i];
+            double lsq=dirE[i]*dirE[i]+dirN[i]*dirN[i];
+            invLenSq[i]=lsq>0 ? 1.0/lsq : 0;
         }
-        int ans=-1;
-        distanceCurrentSegment=-1;
-        double lowestDist=9999999;
-        for(int idx=0;idx<possSegments.size();idx++){
-            if(perpDist.get(idx).doubleValue()<lowestDist){
-                ans=possSegments.get(idx).intValue();
-                lowestDist=perpDist.get(idx).doubleValue();
+        grade=new double[capacity];
+        hasGrades=false;
+        for(int i=0;i<segments && alts!=null;i++)setGrade(i, alts[i], alts[i+1]);
+        count=segments;
+        finish();
+        Log.d("Route", "Loaded compiled route "+title+", "+count+" segments");
+    }
+
+    // Bad coordinates would size the segment index off a corrupt extent
+    private static void checkGeometry(double[] eastings, double[] northings, double[] lengths, int points,
+                                      double minE, double maxE, double minN, double maxN) throws IOException{
+        if(!(minE<=maxE && minN<=maxN && maxE-minE<=MAX_EXTENT_METRES && maxN-minN<=MAX_EXTENT_METRES)){
+            throw new IOException("Compiled route has a bad extent");
+        }
+        for(int i=0;i<points;i++){
+            if(!(eastings[i]>=minE && eastings[i]<=maxE && northings[i]>=minN && northings[i]<=maxN)){
+                throw new IOException("Compiled route point "+i+" is outside the route's extent");
+            }
+            if(i<points-1 && !(lengths[i]>=0 && lengths[i]<=2*MAX_EXTENT_METRES)){
+                throw new IOException("Compiled route segment "+i+" has a bad length");
             }
         }
+    }
 
-        if(ans>-1){
-            computeSnapLocation(p, route.get(ans), sn);
+    /**
+     * Converts points to UTM in one batch and joins them up into segments
+     * @param lats Latitudes, degrees
+     * @param lons Longitudes, degrees
+     * @param alts Altitudes, metres, may be null
+     * @param descs Point descriptions, may be null
+     * @param n Number of points
+     */
+    public void addPoints(double[] lats, double[] lons, double[] alts, ArrayList<String> descs, int n){
+        double[] eastings=new double[n];
+        double[] northings=new double[n];
+        double meridian=DegreesToUTM.latLon2UTM(lats, lons, eastings, northings, n);
+
+        LocationPoint lastPoint=null;
+        for(int i=0;i<n;i++){
+            LocationPoint currentPoint=new LocationPoint();
+            currentPoint.lat=lats[i];
+            currentPoint.lon=lons[i];
+            currentPoint.setUTM(eastings[i], northings[i]);
+            currentPoint.setMeridian(meridian);
+            if(descs!=null)currentPoint.description=descs.get(i);
+            if(alts!=null)currentPoint.altitude=alts[i];
+
+            // Checking if any of the values read are min / max values
+            if(max_easting<currentPoint.easting)max_easting=currentPoint.easting;
+            if(min_easting>currentPoint.easting)min_easting=currentPoint.easting;
+            if(max_northing<currentPoint.northing)max_northing=currentPoint.northing;
+            if(min_northing>currentPoint.northing)min_northing=currentPoint.northing;
+
+            //generate a new route segment, it shares the points with its neighbours
+            if(lastPoint!=null)addSegment(new Segment(lastPoint,currentPoint));
+            lastPoint=currentPoint;
         }
-        sn.currentSegment=ans;
-        currentSegment=sn.currentSegment;
-        return sn;
     }
 
-    private LocationPoint computeSnapLocation(LocationPoint p, Segment s,LocationPoint snap){
-        LocationPoint line_vector=new LocationPoint();
-        line_vector.easting=s.end.easting-s.start.easting;
-        line_vector.northing=s.end.northing-s.start.northing;
+    /**
+     * Fits a local projection covering the route plus a margin, for converting fixes on the
+     * march cheaply. See DegreesToUTM.setLocalProjection
+     * @param marginMetres Extra distance around the route's extent to cover
+     * @return The projection, or null if the route has no points
+     */
+    public LocalProjection localProjection(double marginMetres){
+        if(count==0)return null;
+        LocationPoint first=route.get(0).start;
+        double centerE=(min_easting+max_easting)/2;
+        double centerN=(min_northing+max_northing)/2;
+        // Anchor at the middle of the extent, found from the first point's lat/lon and metres
+        double lat0=first.lat+(centerN-first.northing)/111000.0;
+        double lon0=first.lon+(centerE-first.easting)/(111000.0*Math.cos(Math.toRadians(first.lat)));
+        double half=Math.max(max_easting-min_easting, max_northing-min_northing)/2+marginMetres;
+        return new LocalProjection(lat0, lon0, first.meridian, half);
+    }
+
+    /**
+     * Snaps a point onto the route. When tracking, the stretch of route around the last snap is
+     * searched first, otherwise (or if the point is off that stretch) the point goes to the
+     * closest segment it projects onto.
+     * @param easting Easting of the point
+     * @param northing Northing of the point
+     * @param out Filled in with the snap, allocates nothing
+     * @return true if the point is alongside the route
+     */
+    public boolean snap(double easting, double northing, SnapResult out){
+        if(index==null)buildIndex();
+
+        int ans=-1;
+        if(tracking && currentSegment>=0)ans=index.track(easting, northing, currentSegment, lastAlong);
+        if(ans<0)ans=index.nearest(easting, northing);
+
+        out.segment=ans;
+        currentSegment=ans;
+        if(ans<0){
+            distanceCurrentSegment=-1;
+            return false;
+        }
+        double along=Math.max(0, Math.min(length[ans], index.along));
+        double t=along/length[ans];
+        out.along=along;
+        out.offset=index.perpendicular;
+        out.easting=startE[ans]+t*dirE[ans];
+        out.northing=startN[ans]+t*dirN[ans];
+        out.progress=cumulative[ans]+along;
+        lastAlong=along;
+        distanceCurrentSegment=along;
+        return true;
+    }
+
+    /**
+     * Segments within a radius of a point, closest first, see SegmentIndex.near()
+     */
+    int near(double easting, double northing, double radius, int max, int[] segs, double[] alongs, double[] dists){
+        if(index==null)buildIndex();
+        return index.near(easting, northing, radius, max, segs, alongs, dists);
+    }
 
-        LocationPoint point_vector=new LocationPoint();
-        point_vector.easting=p.easting-s.start.easting;
-        point_vector.northing=p.northing-s.start.northing;
+    /**
+     * Fills in the location and route distance of a point on a segment
+     */
+    void locate(int segment, double along, SnapResult out){
+        double t=length[segment]>0 ? along/length[segment] : 0;
+        out.segment=segment;
+        out.along=along;
+        out.easting=startE[segment]+t*dirE[segment];
+        out.northing=startN[segment]+t*dirN[segment];
+        out.progress=cumulative[segment]+along;
+    }
+
+    /**
+     * Fills in the location of the point a route distance from the start
+     * @param progress Metres, clamped to the route
+     */
+    void locate(double progress, SnapResult out){
+        if(count==0){
+            out.segment=-1;
+            return;
+        }
+        // Last segment starting at or before the distance
+        int lo=0, hi=count-1;
+        while(lo<hi){
+            int mid=(lo+hi+1)>>>1;
+            if(cumulative[mid]<=progress)lo=mid;
+            else hi=mid-1;
+        }
+        locate(lo, Math.max(0, Math.min(length[lo], progress-cumulative[lo])), out);
+    }
 
-        LocationPoint dist_vector=new LocationPoint();
+    /**
+     * Route distance from the start to a point on a segment
+     * @param segment Segment index
+     * @param along Distance along the segment, metres
+     * @return Distance in metres
+     */
+    public double progress(int segment, double along){
+        return cumulative[segment]+along;
+    }
+
+    /**
+     * Route distance left from a point on a segment to the end
+     * @param segment Segment index
+     * @param along Distance along the segment, metres
+     * @return Distance in metres
+     */
+    public double remaining(int segment, double along){
+        return cumulative[count]-cumulative[segment]-along;
+    }
 
-        double dotLandP= line_vector.easting*point_vector.easting+line_vector.northing*point_vector.northing;
-        double normLsq=Math.pow(line_vector.easting,2)+Math.pow(line_vector.northing,2);
-        dist_vector.easting=line_vector.easting*(dotLandP/normLsq);
-        dist_vector.northing=line_vector.northing*(dotLandP/normLsq);
+    /**
+     * @return Length of the whole route, metres
+     */
+    public double totalDistance(){
+        return cumulative[count];
+    }
 
-        distanceCurrentSegment=Math.sqrt(Math.pow(dist_vector.easting,2)+Math.pow(dist_vector.northing,2));
-        snap.distanceAlongSegment=distanceCurrentSegment;
+    /**
+     * Snaps a point onto the route, see snap(). Allocates the returned point, the location loop
+     * should use snap() with a reused SnapResult instead.
+     * @param p The point, with easting and northing set
+     * @return The snapped point, currentSegment is -1 if the point is not alongside any segment
+     */
+    public LocationPoint snapToLine(LocationPoint p){
+        SnapResult r=new SnapResult();
+        LocationPoint sn=new LocationPoint();
+        if(snap(p.easting, p.northing, r)){
+            sn.easting=r.easting;
+            sn.northing=r.northing;
+            sn.distanceAlongSegment=r.along;
+        }
+        sn.currentSegment=r.segment;
+        return sn;
+    }
 
-        //absolute location
-        snap.easting=dist_vector.easting+s.start.easting;
-        snap.northing=dist_vector.northing+s.start.northing;
+    /**
+     * Grade of a segment from its end altitudes. Zero length segments and unknown altitudes
+     * count as flat.
+     */
+    private void setGrade(int i, double startAlt, double endAlt){
+        if(Double.isNaN(startAlt) || Double.isNaN(endAlt) || length[i]<=0){
+            grade[i]=0;
+            return;
+        }
+        grade[i]=100*(endAlt-startAlt)/length[i];
+        hasGrades=true;
+    }
 
+    /**
+     * Grade of a segment, percent rise over run. 0 for routes without altitudes.
+     */
+    public double grade(int segment){
+        return grade[segment];
+    }
 
-        return snap;
+    /**
+     * True if the route file had altitudes, otherwise every grade is 0
+     */
+    public boolean hasGrades(){
+        return hasGrades;
     }
 
-    private double findDistanceFromEndOfLineSegment(LocationPoint p,Segment s){
-        double d=findPerpendicularDistanceToSegment(p,s);
-        double h=Math.sqrt(Math.pow((p.easting-s.end.easting),2)+Math.pow((p.northing-s.end.northing),2));
-        double a=Math.sqrt(h*h-d*d);
-        return a;
+    /**
+     * Number of segments
+     */
+    public int size(){
+        return count;
     }
 
-    private double findDistanceFromStartOfLineSegment(LocationPoint p,Segment s){
-        double d=findPerpendicularDistanceToSegment(p, s);
-        double h=Math.sqrt(Math.pow((p.easting - s.start.easting), 2) + Math.pow((p.northing - s.start.northing), 2));
-        double a=Math.sqrt(h*h-d*d);
-        return a;
+    /**
+     * Builds the spatial index over the segments. Done when a route file is loaded and again on
+     * the next snap after segments are added.
+     */
+    public void buildIndex(){
+        index=new SegmentIndex(startE, startN, dirE, dirN, invLenSq, length, count);
+        Log.d("Route", "Indexed "+count+" segments");
     }
 
-    private double findPerpendicularDistanceToSegment(LocationPoint p, Segment s){
-        double distance=Math.abs((s.end.easting-s.start.easting)*(s.start.northing-p.northing)-(s.start.easting-p.easting)*(s.end.northing-s.start.northing))/Math.sqrt(Math.pow((s.end.easting-s.start.easting),2)+Math.pow((s.end.northing-s.start.northing),2));
-        return distance;
+    /**
+     * Marks the route ready once all its segments are in
+     */
+    void finish(){
+        computeExtent();
+        buildIndex();
+        routeDefined=true;
     }
 
     private void computeExtent(){
@@ -232,5 +603,29 @@ public class Route {
 
     public void addSegment(Segment s){
         route.add(s);
+        if(count==startE.length){
+            int size=Math.max(16, count*2);
+            startE=Arrays.copyOf(startE, size);
+            startN=Arrays.copyOf(startN, size);
+            dirE=Arrays.copyOf(dirE, size);
+            dirN=Arrays.copyOf(dirN, size);
+            invLenSq=Arrays.copyOf(invLenSq, size);
+            length=Arrays.copyOf(length, size);
+            cumulative=Arrays.copyOf(cumulative, size+1);
+            grade=Arrays.copyOf(grade, size);
+        }
+        double de=s.end.easting-s.start.easting;
+        double dn=s.end.northing-s.start.northing;
+        double lsq=de*de+dn*dn;
+        startE[count]=s.start.easting;
+        startN[count]=s.start.northing;
+        dirE[count]=de;
+        dirN[count]=dn;
+        invLenSq[count]=lsq>0 ? 1.0/lsq : 0;
+        length[count]=Math.sqrt(lsq);
+        cumulative[count+1]=cumulative[count]+length[count];
+        setGrade(count, s.start.altitude, s.end.altitude);
+        count++;
+        index=null;
     }
 }
@@ -0,0 +1,88 @@
+package com.dataxign.mark.aasruckmarchpacer.geo;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.dataxign.mark.aasruckmarchpacer.functions.ContentCache;
+import com.dataxign.mark.aasruckmarchpacer.functions.HelperStuff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+/**
+ * Keeps CSV and GPX routes in the app cache dir in the compiled route format, keyed by a hash
+ * of the file content. A route is compiled the first time it is opened and loads in bulk after that.
+ * The source is streamed twice on a miss, once to hash and once to parse, so memory stays
+ * bounded however big the survey is.
+ */
+public class RouteCache {
+
+    private static final int MAX_ENTRIES=16;
+    private static final int SNIFF_BYTES=256; // Enough to tell GPX from CSV
+
+    /**
+     * Opens a fresh stream over the route file, each call starting from the beginning
+     */
+    public interface Source {
+        InputStream open() throws IOException;
+    }
+
+    private final ContentCache cache;
+
+    public RouteCache(Context cx){
+        cache=new ContentCache(new File(cx.getCacheDir(), "routes"), "route_", ".opar", MAX_ENTRIES);
+    }
+
+    /**
+     * Loads a CSV or GPX route into a Route, from the cache when this content has been compiled before
+     * @param source The route file
+     * @param into Route to fill in
+     */
+    public void load(Source source, final Route into) throws IOException{
+        long hash;
+        InputStream in=source.open();
+        try{
+            hash=HelperStuff.contentHash(in);
+        } finally {
+            in.close();
+        }
+
+        // The format version is part of the key so routes compiled by an older build get recompiled
+        File cached=cache.entry(Long.toHexString(hash)+"_v"+Route.VERSION);
+        if(cached.isFile()){
+            try{
+                into.generateRouteFromBinary(cache.map(cached));
+                return;
+            } catch(IOException e){
+                Log.w("RouteCache", "Dropping bad cached route "+cached.getName()+". "+e.getMessage());
+                cached.delete();
+            }
+        }
+
+        in=new BufferedInputStream(source.open());
+        try{
+            if(GpxImporter.isGpx(ContentCache.peek(in, SNIFF_BYTES))){
+                try{
+                    new GpxImporter().read(in, into);
+                } catch(IOException e){
+                    Log.e("RouteCache", "Can't read GPX route. "+e.getMessage());
+                }
+            } else {
+                into.generateRouteFromFile(new BufferedReader(new InputStreamReader(in)));
+            }
+        } finally {
+            in.close();
+        }
+        if(!into.routeDefined)return;
+        cache.store(cached, new ContentCache.Writer() {
+            public void write(OutputStream out) throws IOException {
+                into.write(out);
+            }
+        });
+    }
+}
@@ -0,0 +1,117 @@
+package com.dataxign.mark.aasruckmarchpacer.geo;
+
+/**
+ * A sliding window of timed samples with a running sum of each channel, for moving averages that
+ * cost the same per sample whatever the window length. The window holds at most the last
+ * samples values and, if millis is set, none older than millis before the newest.
+ */
+class SampleWindow {
+
+    private static final int RESUM_INTERVAL=1024;
+
+    private final int channels;
+    private int samples;
+    private long millis=0; // 0 for no time limit
+    private double[] values; // [slot*channels+channel]
+    private long[] times;
+    private final double[] sums;
+    private int head=0;      // Oldest sample
+    private int count=0;
+    private int removed=0;   // Samples dropped since the sums were last recomputed
+
+    SampleWindow(int channels, int samples){
+        this.channels=channels;
+        this.samples=Math.max(1, samples);
+        values=new double[this.samples*channels];
+        times=new long[this.samples];
+        sums=new double[channels];
+    }
+
+    /**
+     * @param samples Most samples kept, at least 1
+     * @param millis Oldest sample kept, or 0 to keep the last samples whatever their age
+     */
+    void setWindow(int samples, long millis){
+        this.samples=Math.max(1, samples);
+        this.millis=Math.max(0, millis);
+        while(count>this.samples)dropOldest();
+        // A time window keeps as many samples as arrive in it, the ring grows to fit
+        if(this.millis==0 && times.length!=this.samples)resize(this.samples);
+    }
+
+    /**
+     * Drops samples that have aged out of a time window
+     */
+    void expire(long now){
+        if(millis==0)return;
+        while(count>0 && times[head]<=now-millis)dropOldest();
+    }
+
+    void add(long time, double v){
+        int i=slot(time);
+        values[i*channels]=v;
+        sums[0]+=v;
+    }
+
+    void add(long time, double v0, double v1){
+        int i=slot(time);
+        values[i*channels]=v0;
+        values[i*channels+1]=v1;
+        sums[0]+=v0;
+        sums[1]+=v1;
+    }
+
+    int count(){
+        return count;
+    }
+
+    double sum(int channel){
+        return sums[channel];
+    }
+
+    void clear(){
+        head=0;
+        count=0;
+        removed=0;
+        for(int c=0;c<channels;c++)sums[c]=0;
+    }
+
+    private int slot(long time){
+        expire(time);
+        if(count==samples)dropOldest();
+        if(count==times.length)resize(Math.min(samples, count*2));
+        int i=(head+count)%times.length;
+        times[i]=time;
+        count++;
+        return i;
+    }
+
+    private void dropOldest(){
+        for(int c=0;c<channels;c++)sums[c]-=values[head*channels+c];
+        head=(head+1)%times.length;
+        count--;
+        // Adding and taking away leaves rounding error in the sums, start them again now and then
+        if(++removed>=RESUM_INTERVAL){
+            removed=0;
+            for(int c=0;c<channels;c++){
+                double s=0;
+                for(int k=0;k<count;k++)s+=values[((head+k)%times.length)*channels+c];
+                sums[c]=s;
+            }
+        }
+    }
+
+    private void resize(int capacity){
+        capacity=Math.max(1, capacity);
+        double[] v=new double[capacity*channels];
+        long[] t=new long[capacity];
+        for(int k=0;k<count;k++){
+            int from=(head+k)%times.length;
+            t[k]=times[from];
+            System.arraycopy(values, from*channels, v, k*channels, channels);
+        }
+        values=v;
+        times=t;
+        head=0;
+    }
+}
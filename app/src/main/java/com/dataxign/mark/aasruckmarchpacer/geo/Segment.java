@@ -2,7 +2,8 @@ package com.dataxign.mark.aasruckmarchpacer.geo;
 
 /**
  * Created by Mark on 3/20/2016.
- * A segment is defined by two points
+ * A segment is defined by two points. The points are shared with the caller (and with the
+ * neighbouring segments of a route), not copied.
  */
 public class Segment {
     public LocationPoint start;
@@ -12,12 +13,23 @@ public class Segment {
     public double heading=-1;
 
     public Segment(LocationPoint s, LocationPoint e){
-        start=s.copyOf();
-        end=e.copyOf();
+        start=s;
+        end=e;
         computeDistance();
         computeHeading();
     }
 
+    /**
+     * For a compiled route, where the distance and heading were worked out when it was compiled
+     */
+    Segment(LocationPoint s, LocationPoint e, double distance, double heading){
+        start=s;
+        end=e;
+        this.distance=distance;
+        distanceMiles=convertM2Miles(distance);
+        this.heading=heading;
+    }
+
     private void computeHeading(){
         double x=end.easting-start.easting;
         double y=end.northing-start.northing;
@@ -28,7 +40,9 @@ public class Segment {
     }
 
     private void computeDistance(){
-        distance=Math.sqrt(Math.pow((start.easting - end.easting), 2) + Math.pow((start.northing - end.northing), 2));
+        double de=start.easting-end.easting;
+        double dn=start.northing-end.northing;
+        distance=Math.sqrt(de*de+dn*dn);
         distanceMiles=convertM2Miles(distance);
     }
 
@@ -0,0 +1,316 @@
+package com.dataxign.mark.aasruckmarchpacer.geo;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the bounding boxes of a route's segments, in UTM metres.
+ * A segment is listed in every cell its bounding box touches, so a snap only has to test the
+ * segments in the cells around the fix instead of the whole route.
+ */
+public class SegmentIndex {
+
+    // Slack on either end of a segment a fix can project onto and still snap to it, metres
+    public static final double END_TOLERANCE=0.05;
+
+    private static final double MIN_CELL_SIZE=25;
+
+    // Tracking window around the last snap, see track()
+    public static final double TRACK_OFFSET=25;     // Furthest off the route a tracked fix can be, metres
+    public static final double TRACK_AHEAD=150;     // Route distance searched ahead of the last snap, metres
+    public static final double TRACK_BEHIND=50;     // Route distance searched behind the last snap, metres
+    public static final int TRACK_SEGMENTS=64;      // Most segments searched either way
+    private static final double PROGRESS_WEIGHT=0.1; // Cost per metre moved along the route, doubled going backwards
+
+    private final double[] startE, startN, dirE, dirN, invLenSq, length;
+    private final int count;
+
+    private double originE, originN, cellSize;
+    private int cols, rows;
+    private int[] cellStart; // Segments of cell c are cellSegs[cellStart[c]..cellStart[c+1])
+    private int[] cellSegs;
+
+    // Marks segments already tested during one query
+    private final int[] stamp;
+    private int query=0;
+
+    // Best candidate so far during track()
+    private int trackBest;
+    private double trackCost, trackAlong, trackPerpendicular;
+
+    // Result of the last nearest() or track() call
+    public double along;
+    public double perpendicular;
+
+    /**
+     * Indexes the first count segments of a route's geometry arrays, which are shared not copied
+     * @param dirE End minus start
+     * @param invLenSq 1/length^2, 0 for a zero length segment
+     */
+    SegmentIndex(double[] startE, double[] startN, double[] dirE, double[] dirN, double[] invLenSq, double[] length, int count){
+        this.startE=startE;
+        this.startN=startN;
+        this.dirE=dirE;
+        this.dirN=dirN;
+        this.invLenSq=invLenSq;
+        this.length=length;
+        this.count=count;
+        stamp=new int[count];
+        build();
+    }
+
+    public int size(){
+        return count;
+    }
+
+    private void build(){
+        double minE=Double.MAX_VALUE, minN=Double.MAX_VALUE, maxE=-Double.MAX_VALUE, maxN=-Double.MAX_VALUE;
+        double totalLength=0;
+        for(int i=0;i<count;i++){
+            double endE=startE[i]+dirE[i];
+            double endN=startN[i]+dirN[i];
+            minE=Math.min(minE, Math.min(startE[i], endE));
+            maxE=Math.max(maxE, Math.max(startE[i], endE));
+            minN=Math.min(minN, Math.min(startN[i], endN));
+            maxN=Math.max(maxN, Math.max(startN[i], endN));
+            totalLength+=length[i];
+        }
+        if(count==0){
+            minE=minN=maxE=maxN=0;
+        }
+
+        // About one cell per segment, but never smaller than a typical segment
+        double area=Math.max(maxE-minE, 1)*Math.max(maxN-minN, 1);
+        cellSize=Math.max(MIN_CELL_SIZE, Math.max(totalLength/Math.max(count, 1), Math.sqrt(area/Math.max(count, 1))));
+        originE=minE;
+        originN=minN;
+        cols=(int)((maxE-minE)/cellSize)+1;
+        rows=(int)((maxN-minN)/cellSize)+1;
+
+        // Count then fill, so the cell lists are two flat arrays
+        cellStart=new int[cols*rows+1];
+        for(int pass=0;pass<2;pass++){
+            int[] fill=null;
+            if(pass==1){
+                for(int c=0;c<cols*rows;c++)cellStart[c+1]+=cellStart[c];
+                cellSegs=new int[cellStart[cols*rows]];
+                fill=new int[cols*rows];
+            }
+            for(int i=0;i<count;i++){
+                if(length[i]<=0)continue;
+                double endE=startE[i]+dirE[i];
+                double endN=startN[i]+dirN[i];
+                int c0=col(Math.min(startE[i], endE)-END_TOLERANCE), c1=col(Math.max(startE[i], endE)+END_TOLERANCE);
+                int r0=row(Math.min(startN[i], endN)-END_TOLERANCE), r1=row(Math.max(startN[i], endN)+END_TOLERANCE);
+                for(int r=r0;r<=r1;r++){
+                    for(int c=c0;c<=c1;c++){
+                        int cell=r*cols+c;
+                        if(pass==0)cellStart[cell+1]++;
+                        else cellSegs[cellStart[cell]+fill[cell]++]=i;
+                    }
+                }
+            }
+        }
+    }
+
+    private int col(double e){
+        int c=(int)Math.floor((e-originE)/cellSize);
+        return c<0 ? 0 : (c>=cols ? cols-1 : c);
+    }
+
+    private int row(double n){
+        int r=(int)Math.floor((n-originN)/cellSize);
+        return r<0 ? 0 : (r>=rows ? rows-1 : r);
+    }
+
+    /**
+     * Finds the segment closest to a point, out of the segments the point projects onto.
+     * Searches rings of cells outward from the point and stops once no unsearched cell can hold
+     * anything closer. Ties go to the lowest segment index.
+     * @param e Easting of the point
+     * @param n Northing of the point
+     * @return The segment index, or -1 if the point doesn't project onto any segment.
+     * along and perpendicular hold the distances for the segment found.
+     */
+    public int nearest(double e, double n){
+        if(++query==0){
+            Arrays.fill(stamp, 0);
+            query=1;
+        }
+        int best=-1;
+        double bestDist=Double.MAX_VALUE;
+        double bestAlong=0;
+        int cc=col(e), cr=row(n);
+        int maxRing=Math.max(cols, rows);
+
+        for(int ring=0;ring<=maxRing;ring++){
+            // Closest any cell in this ring or further out can be
+            double bound=Math.min(gap(e, originE, cc, ring, cols), gap(n, originN, cr, ring, rows));
+            if(bound==Double.MAX_VALUE)break;
+            if(best>=0 && bound>bestDist)break;
+
+            for(int r=cr-ring;r<=cr+ring;r++){
+                if(r<0 || r>=rows)continue;
+                boolean edgeRow=(r==cr-ring || r==cr+ring);
+                int step=edgeRow ? 1 : 2*ring;
+                for(int c=cc-ring;c<=cc+ring;c+=Math.max(step, 1)){
+                    if(c<0 || c>=cols)continue;
+                    int cell=r*cols+c;
+                    for(int k=cellStart[cell];k<cellStart[cell+1];k++){
+                        int i=cellSegs[k];
+                        if(stamp[i]==query)continue;
+                        stamp[i]=query;
+
+                        double pe=e-startE[i];
+                        double pn=n-startN[i];
+                        double perLength=invLenSq[i]*length[i];
+                        double a=(pe*dirE[i]+pn*dirN[i])*perLength;
+                        if(a<-END_TOLERANCE || a>length[i]+END_TOLERANCE)continue;
+                        double d=Math.abs(pe*dirN[i]-pn*dirE[i])*perLength;
+                        if(d<bestDist || (d==bestDist && i<best)){
+                            best=i;
+                            bestDist=d;
+                            bestAlong=a;
+                        }
+                    }
+                }
+            }
+        }
+        along=bestAlong;
+        perpendicular=bestDist;
+        return best;
+    }
+
+    /**
+     * Finds the segment for a point by searching a short stretch of route around the last snap.
+     * Candidates must be within TRACK_OFFSET of the route. Each costs its perpendicular distance
+     * plus a small charge for the route distance from the last snap, so where the route overlaps
+     * itself (out and back, loops) the leg the marcher is already on wins.
+     * @param e Easting of the point
+     * @param n Northing of the point
+     * @param previous Segment of the last snap
+     * @param previousAlong Distance along that segment of the last snap
+     * @return The segment index, or -1 if nothing in the window fits and a full search is needed.
+     * along and perpendicular hold the distances for the segment found.
+     */
+    public int track(double e, double n, int previous, double previousAlong){
+        if(previous<0 || previous>=count)return -1;
+        trackBest=-1;
+        trackCost=Double.MAX_VALUE;
+
+        // Ahead, starting with the last snap's own segment. ahead is the route distance from
+        // the last snap to the start of segment i.
+        double ahead=-previousAlong;
+        for(int i=previous, k=0;i<count && k<=TRACK_SEGMENTS && ahead<=TRACK_AHEAD;i++, k++){
+            consider(i, e, n, ahead, true);
+            ahead+=length[i];
+        }
+        // Behind. behind is the route distance back from the last snap to the end of segment i.
+        double behind=previousAlong;
+        for(int i=previous-1, k=0;i>=0 && k<TRACK_SEGMENTS && behind<=TRACK_BEHIND;i--, k++){
+            consider(i, e, n, -behind-length[i], false);
+            behind+=length[i];
+        }
+
+        if(trackBest>=0){
+            along=trackAlong;
+            perpendicular=trackPerpendicular;
+        }
+        return trackBest;
+    }
+
+    /**
+     * Tests one segment for track()
+     * @param offset Route distance from the last snap to the start of the segment
+     */
+    private void consider(int i, double e, double n, double offset, boolean forward){
+        if(length[i]<=0)return;
+        double pe=e-startE[i];
+        double pn=n-startN[i];
+        double perLength=invLenSq[i]*length[i];
+        double a=(pe*dirE[i]+pn*dirN[i])*perLength;
+        if(a<-END_TOLERANCE || a>length[i]+END_TOLERANCE)return;
+        double d=Math.abs(pe*dirN[i]-pn*dirE[i])*perLength;
+        if(d>TRACK_OFFSET)return;
+        double moved=offset+a;
+        double cost=d+PROGRESS_WEIGHT*(moved>=0 ? moved : -2*moved);
+        if(cost<trackCost){
+            trackBest=i;
+            trackCost=cost;
+            trackAlong=a;
+            trackPerpendicular=d;
+        }
+    }
+
+    /**
+     * Finds the segments within a radius of a point, closest first. Unlike nearest(), a point
+     * past the end of a segment measures to its end, so fixes cutting a corner still find both
+     * legs. Ties go to the lowest segment index.
+     * @param radius Furthest a segment can be, metres
+     * @param max Most segments to return, the size of the output arrays
+     * @param segs Filled in with segment indices
+     * @param alongs Filled in with the distance along each segment of its closest point
+     * @param dists Filled in with the distance from the point to each segment
+     * @return Number of segments found
+     */
+    public int near(double e, double n, double radius, int max, int[] segs, double[] alongs, double[] dists){
+        if(++query==0){
+            Arrays.fill(stamp, 0);
+            query=1;
+        }
+        int found=0;
+        int c0=col(e-radius), c1=col(e+radius);
+        int r0=row(n-radius), r1=row(n+radius);
+        for(int r=r0;r<=r1;r++){
+            for(int c=c0;c<=c1;c++){
+                int cell=r*cols+c;
+                for(int k=cellStart[cell];k<cellStart[cell+1];k++){
+                    int i=cellSegs[k];
+                    if(stamp[i]==query)continue;
+                    stamp[i]=query;
+
+                    double pe=e-startE[i];
+                    double pn=n-startN[i];
+                    double t=(pe*dirE[i]+pn*dirN[i])*invLenSq[i];
+                    t=t<0 ? 0 : (t>1 ? 1 : t);
+                    double de=pe-t*dirE[i];
+                    double dn=pn-t*dirN[i];
+                    double d=Math.sqrt(de*de+dn*dn);
+                    if(d>radius)continue;
+                    if(found==max && (d>dists[max-1] || (d==dists[max-1] && i>segs[max-1])))continue;
+
+                    // Insert in order, dropping the furthest if full
+                    int at=found<max ? found++ : max-1;
+                    while(at>0 && (dists[at-1]>d || (dists[at-1]==d && segs[at-1]>i))){
+                        segs[at]=segs[at-1];
+                        alongs[at]=alongs[at-1];
+                        dists[at]=dists[at-1];
+                        at--;
+                    }
+                    segs[at]=i;
+                    alongs[at]=t*length[i];
+                    dists[at]=d;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Distance along one axis from a point to the nearest grid line or column that is ring
+     * cells away from the point's cell, MAX_VALUE if that ring is off the grid on both sides
+     */
+    private double gap(double x, double origin, int center, int ring, int cells){
+        double g=Double.MAX_VALUE;
+        int lo=center-ring;
+        int hi=center+ring;
+        if(lo>=0){
+            double edge=origin+(lo+1)*cellSize;
+            g=Math.min(g, lo==center ? 0 : Math.max(0, x-edge));
+        }
+        if(hi<cells){
+            double edge=origin+hi*cellSize;
+            g=Math.min(g, hi==center ? 0 : Math.max(0, edge-x));
+        }
+        return g;
+    }
+}
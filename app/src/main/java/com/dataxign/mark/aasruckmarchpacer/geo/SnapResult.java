@@ -0,0 +1,18 @@
+package com.dataxign.mark.aasruckmarchpacer.geo;
+
+/**
+ * Where a fix lands on a route, filled in by Route.snap() so the caller can keep reusing one
+ * instance instead of allocating per fix.
+ */
+public class SnapResult {
+    public int segment=-1;        // Segment index, -1 if the fix is not alongside the route
+    public double along;          // Distance along the segment, metres
+    public double offset;         // Perpendicular distance from the route, metres
+    public double progress;       // Route distance from the start, metres
+    public double easting;        // Snapped location
+    public double northing;
+
+    public boolean onRoute(){
+        return segment>=0;
+    }
+}
@@ -10,8 +10,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
+import java.util.Collections;
+import java.util.Comparator;
 
 import android.content.Context;
 import android.content.res.Resources;
@@ -19,7 +19,9 @@ import android.net.Uri;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.dataxign.mark.aasruckmarchpacer.functions.Clock;
 import com.dataxign.mark.aasruckmarchpacer.functions.USARIEM;
+import com.dataxign.mark.aasruckmarchpacer.geo.Route;
 
 public class DataManager {
 
@@ -38,26 +40,54 @@ public class DataManager {
 	public final static int E_PSI=9;
 	public final static int DIST=10;
 	public final static int GUID=11;
+	public final static int MET=12;
 
-	private ArrayList<Double> rawHR;
-	private ArrayList<Double> rawTC;
-	private ArrayList<Double> rawSpeed;
+	// Every series is timed, raw ones hold the current minute's samples
+	private final TimeSeries rawHR=new TimeSeries();
+	private final TimeSeries rawTC=new TimeSeries();
+	private final TimeSeries rawSpeed=new TimeSeries();
 
-	private ArrayList<Double> smoothedHR;
-	private ArrayList<Double> smoothedTC;
-	private ArrayList<Double> smoothedSpeed;
+	private final TimeSeries smoothedHR=new TimeSeries();
+	private final TimeSeries smoothedTC=new TimeSeries();
+	private final TimeSeries smoothedSpeed=new TimeSeries();
 
-	private ArrayList<Double> estTC;
-	private ArrayList<Double> obsPSI;
-	private ArrayList<Double> estPSI;
+	private final TimeSeries estTC=new TimeSeries();
+	private final TimeSeries obsPSI=new TimeSeries();
+	private final TimeSeries estPSI=new TimeSeries();
 
-	private ArrayList<Double> distance;
-	private ArrayList<Double> guidance;
+	private final TimeSeries distance=new TimeSeries();
+	private final TimeSeries guidance=new TimeSeries();
+
+	private final TimeSeries rawMet=new TimeSeries();
+	private final TimeSeries metabolic=new TimeSeries();
+
+	// Running medians of the current minute's raw samples
+	private final static int MINUTE_SAMPLES = 1024; // Most samples in a minute's median, the latest are kept
+	private final SlidingMedian minuteHR=new SlidingMedian(MINUTE_SAMPLES);
+	private final SlidingMedian minuteTC=new SlidingMedian(MINUTE_SAMPLES);
+	private final SlidingMedian minuteSpeed=new SlidingMedian(MINUTE_SAMPLES);
+	private final SlidingMedian minuteMet=new SlidingMedian(MINUTE_SAMPLES);
+
+	// Reject single sample spikes that are still in range, like a dropped HR beat or a GPS speed jump
+	private final HampelFilter hrFilter=new HampelFilter(15, 3);
+	private final HampelFilter speedFilter=new HampelFilter(15, 0.5);
 
 	public double lastGoodHR=0;
 	public double lastGoodTC=0;
 	public double lastGoodMPH=0;
 	public double distanceCompleted=0;
+	private double lastDistanceCompleted=0;
+	private boolean routeOdometer=false; // Distance comes from the route position, see setRouteProgress
+	private long lastProgressTime;
+	private final static double MAX_PROGRESS_MPH = 8.0; // Faster than a ruck march, bounds one route position's pull
+	private final static double PROGRESS_SLACK_MILES = 0.02; // GPS error allowed on top of that
+
+	// Subject and load for the metabolic rate, see setRoute
+	public double bodyWeight=80;
+	public double load=30;
+	public double terrainFactor=1.0;
+	private MetabolicTable metTable;
+	private int routeSegment=-1;
 
 	private long sessionStartTime;
 
@@ -69,6 +99,9 @@ public class DataManager {
 	private KalmanState ks=new KalmanState();
 
 	private Context appCntx;
+	private final Clock clock;
+	private SessionJournal journal; // Null if the journal couldn't be opened
+	private final static int MAX_JOURNALS = 30; // Sessions kept in files/sessions, the oldest go first
 
 	/**
 	 * Constructor method.
@@ -76,54 +109,203 @@ public class DataManager {
 	 * @param cx App context
 	 */
 	public DataManager(Resources r, Context cx){
-		Log.d("DataManager", "Creating Data Manager...");
-		rawHR=new ArrayList<Double>();
-		rawTC=new ArrayList<Double>();
-		rawSpeed=new ArrayList<Double>();
-		smoothedHR=new ArrayList<Double>();
-		smoothedTC=new ArrayList<Double>();
-		smoothedSpeed=new ArrayList<Double>();
-		estTC=new ArrayList<Double>();
-		obsPSI=new ArrayList<Double>();
-		estPSI=new ArrayList<Double>();
-		distance=new ArrayList<Double>();
-		guidance=new ArrayList<Double>();
-		policy=new Policy(r);
-		appCntx=cx;
-		Log.d("DataManager", "... Data Manager created!");
+		this(new Policy(r), cx, Clock.SYSTEM);
 	}
 
 	public DataManager(Uri uri, Context cx){
+		this(new Policy(uri, cx), cx, Clock.SYSTEM);
+	}
+
+	/**
+	 * Creates a data manager with no policy yet. Guidance is 0 until one is loaded with loadPolicy.
+	 * @param cx App context
+	 */
+	public DataManager(Context cx){
+		this(new Policy(), cx, Clock.SYSTEM);
+	}
+
+	/**
+	 * Creates a data manager off the app, for replaying sessions. There is no session journal.
+	 * @param p The policy
+	 * @param clock All the intervals and timestamps come from this
+	 */
+	public DataManager(Policy p, Clock clock){
+		this(p, null, clock);
+	}
+
+	private DataManager(Policy p, Context cx, Clock clock){
 		Log.d("DataManager", "Creating Data Manager...");
-		rawHR=new ArrayList<Double>();
-		rawTC=new ArrayList<Double>();
-		rawSpeed=new ArrayList<Double>();
-		smoothedHR=new ArrayList<Double>();
-		smoothedTC=new ArrayList<Double>();
-		smoothedSpeed=new ArrayList<Double>();
-		estTC=new ArrayList<Double>();
-		obsPSI=new ArrayList<Double>();
-		estPSI=new ArrayList<Double>();
-		distance=new ArrayList<Double>();
-		guidance=new ArrayList<Double>();
-		policy=new Policy(uri, cx);
+		this.clock=clock;
+		policy=p;
 		appCntx=cx;
 		Log.d("DataManager", "... Data Manager created!");
 	}
 
+	/**
+	 * Loads a policy in the background and switches to it on the next guidance tick.
+	 * The session history and Kalman state are kept.
+	 * @param uri The policy file
+	 * @param listener Told when the load finishes, on the loader thread. May be null
+	 */
+	public void loadPolicy(Uri uri, Policy.OnPolicyLoadedListener listener){
+		policy.loadAsync(uri, appCntx, listener);
+	}
+
+	public boolean hasPolicy(){
+		return policy.gotPolicy;
+	}
+
+	/**
+	 * The policy guidance comes from, a background load swaps the table inside it
+	 */
+	public Policy getPolicy(){
+		return policy;
+	}
+
+	/**
+	 * Feeds the marcher's position along the route, called on every fix. Once this has been
+	 * called, distance completed follows the route instead of being integrated from the minute
+	 * speeds. Each call moves it, forward or back, by no more than MAX_PROGRESS_MPH could cover
+	 * since the last one, so a fix matched to the wrong leg can't jump the policy's distance and
+	 * a bad one is walked back by the fixes after it.
+	 * @param miles Route distance from the start
+	 */
+	public void setRouteProgress(double miles){
+		long time=clock.millis();
+		double reach=MAX_PROGRESS_MPH*(time-lastProgressTime)/(1000.0*60*60)+PROGRESS_SLACK_MILES;
+		lastProgressTime=time;
+		routeOdometer=true;
+		double step=miles-distanceCompleted;
+		if(step>reach)step=reach;
+		else if(step<-reach)step=-reach;
+		distanceCompleted=Math.max(0, distanceCompleted+step);
+	}
+
+	/**
+	 * Works out the metabolic rate table for a route's grade profile with the current
+	 * bodyWeight, load and terrainFactor. Call again if those change.
+	 * @param route The loaded route, null clears the table
+	 */
+	public void setRoute(Route route){
+		metTable=route==null ? null : new MetabolicTable(route, bodyWeight, load, terrainFactor);
+		routeSegment=-1;
+	}
+
+	/**
+	 * Feeds the route segment the marcher is on, called on every fix
+	 * @param segment Snapped segment, -1 when off the route
+	 */
+	public void setRouteSegment(int segment){
+		routeSegment=segment;
+	}
+
 	/**
 	 * Initializes the data manager to be run.
 	 */
 	public void startSession(){
 		Log.d("DataManager", "Starting session!");
 		distanceCompleted = 0;
-		sessionStartTime = new Date().getTime();
+		lastDistanceCompleted = 0;
+		sessionStartTime = clock.millis();
+		lastDistanceCompute = sessionStartTime;
+		lastProgressTime = sessionStartTime;
+		openJournal();
 		computeGuidance();
 		double currentTc=getCurrent(smoothedTC);
 		if(currentTc>=35.5 && currentTc<38.5){ ks.currentTC=currentTc; }
-		rawHR.clear();
-		rawTC.clear();
-		rawSpeed.clear();
+		clearMinute();
+		hrFilter.clear();
+		speedFilter.clear();
+	}
+
+	/**
+	 * Commits the session journal and closes it. Safe to call more than once.
+	 */
+	public void endSession(){
+		if(journal==null)return;
+		try {
+			journal.close();
+		} catch (IOException e) {
+			Log.e("DataManager", "Couldn't close the session journal. "+e.getMessage());
+		}
+		journal=null;
+	}
+
+	/**
+	 * Records a GPS fix in the session journal, called on every fix
+	 * @param lat Latitude
+	 * @param lon Longitude
+	 * @param MPH GPS speed
+	 * @param routeMiles Route distance of the fix, -1 off the route
+	 */
+	public void logFix(double lat, double lon, double MPH, double routeMiles){
+		log(clock.millis(), SessionJournal.FIX, lat, lon, MPH, routeMiles);
+	}
+
+	private void openJournal(){
+		endSession();
+		if (appCntx == null) return; // Replaying
+		File dir = new File(appCntx.getFilesDir(), "sessions");
+		if (!dir.isDirectory() && !dir.mkdirs()) { Log.e("DataManager", "Couldn't make "+dir); return; }
+		pruneJournals(dir, MAX_JOURNALS-1);
+		try {
+			journal = new SessionJournal(new File(dir, "session_"+sessionStartTime+".journal"), sessionStartTime);
+		} catch (IOException e) {
+			Log.e("DataManager", "Couldn't open the session journal, the session won't be saved. "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Deletes the oldest session journals so at most keep are left. Names hold the start time,
+	 * so they sort oldest first.
+	 */
+	private static void pruneJournals(File dir, int keep){
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		ArrayList<File> journals = new ArrayList<File>();
+		for (File f : files) {
+			String name = f.getName();
+			if (name.startsWith("session_") && name.endsWith(".journal")) journals.add(f);
+		}
+		if (journals.size() <= keep) return;
+		Collections.sort(journals, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(startOf(a), startOf(b));
+			}
+		});
+		for (int i = 0; i < journals.size()-keep; i++) {
+			if (!journals.get(i).delete()) Log.w("DataManager", "Couldn't delete old journal "+journals.get(i).getName());
+		}
+	}
+
+	private static long startOf(File journal){
+		String name = journal.getName();
+		try {
+			return Long.parseLong(name.substring("session_".length(), name.length()-".journal".length()));
+		} catch (NumberFormatException e) {
+			return journal.lastModified();
+		}
+	}
+
+	private void log(long time, int type, double a, double b, double c, double d){
+		if(journal==null)return;
+		try {
+			journal.append(time, type, a, b, c, d);
+		} catch (IOException e) {
+			// Keep the march going without the journal rather than fail every sample
+			Log.e("DataManager", "Session journal write failed, stopping it. "+e.getMessage());
+			journal=null;
+		}
+	}
+
+	private void commitJournal(){
+		if(journal==null)return;
+		try {
+			journal.commit();
+		} catch (IOException e) {
+			Log.e("DataManager", "Session journal commit failed, stopping it. "+e.getMessage());
+			journal=null;
+		}
 	}
 
 	/**
@@ -133,11 +315,20 @@ public class DataManager {
 	 */
 	public void update(double HR, double MPH) {
 		Log.v("DataManager", "Data Manager updated!");
-		double TC = computeEstimatedTC(HR);
-		if (!(HR>220 || HR<40)) { lastGoodHR = HR; rawHR.add(Double.valueOf(HR)); }
-		if (!(TC>20.0 || TC<42.5)) { lastGoodTC = TC; rawTC.add(Double.valueOf(TC)); }
-		if (!(MPH>11 || MPH<0)) { lastGoodMPH = MPH; rawSpeed.add(MPH); }
-		long currentTime = System.currentTimeMillis();
+		long currentTime = clock.millis();
+		if (!(HR>220 || HR<40) && hrFilter.accept(HR)) {
+			lastGoodHR = HR; rawHR.add(currentTime, HR); minuteHR.add(HR);
+			// Only accepted beats step the Kalman filter, a rejected one leaves lastGoodTC standing
+			double TC = computeEstimatedTC(HR);
+			if (!(TC<20.0 || TC>42.5)) { lastGoodTC = TC; rawTC.add(currentTime, TC); minuteTC.add(TC); }
+		}
+		log(currentTime, SessionJournal.SAMPLE, HR, MPH, ks.currentTC, ks.currentV);
+		if (!(MPH>11 || MPH<0) && speedFilter.accept(MPH)) { lastGoodMPH = MPH; rawSpeed.add(currentTime, MPH); minuteSpeed.add(MPH); }
+		if (metTable != null && routeSegment >= 0) {
+			double met = metTable.rate(routeSegment, lastGoodMPH);
+			rawMet.add(currentTime, met);
+			minuteMet.add(met);
+		}
 		if(currentTime-lastDataSmooth >= SMOOTH_INTERVAL_MILLIS) {
 			this.computeDistance(); // Update the distance
 			this.computeMinuteValues(); // Compute the smoothed 1-min values
@@ -147,67 +338,100 @@ public class DataManager {
 	}
 
 	private void computeMinuteValues(){
-		smoothedHR.add(Double.valueOf(computeMedian(rawHR)));
-		smoothedTC.add(Double.valueOf(computeMedian(rawTC)));
-		smoothedSpeed.add(Double.valueOf(computeMedian(rawSpeed)));
-		obsPSI.add(computePSI(getCurrent(smoothedTC),getCurrent(smoothedHR)));
-		estTC.add(computeEstimatedTC(getCurrent(smoothedHR)));
-		estPSI.add(computePSI(getCurrent(estTC),getCurrent(smoothedHR)));
-		long currentTime = System.currentTimeMillis();
+		long currentTime = clock.millis();
+		smoothedHR.add(currentTime, minuteHR.median(-10));
+		smoothedTC.add(currentTime, minuteTC.median(-10));
+		smoothedSpeed.add(currentTime, minuteSpeed.median(-10));
+		obsPSI.add(currentTime, computePSI(getCurrent(smoothedTC),getCurrent(smoothedHR)));
+		estTC.add(currentTime, computeEstimatedTC(getCurrent(smoothedHR)));
+		estPSI.add(currentTime, computePSI(getCurrent(estTC),getCurrent(smoothedHR)));
+		metabolic.add(currentTime, minuteMet.median(-10));
 		lastDataSmooth = currentTime;
+		clearMinute();
+		log(currentTime, SessionJournal.MINUTE, getCurrent(smoothedHR), getCurrent(smoothedTC), getCurrent(smoothedSpeed), getCurrent(metabolic));
+		log(currentTime, SessionJournal.PSI, getCurrent(obsPSI), getCurrent(estTC), getCurrent(estPSI), getCurrent(distance));
+		commitJournal(); // A minute is the most a crash can lose
+	}
+
+	private void clearMinute(){
 		rawHR.clear();
 		rawTC.clear();
 		rawSpeed.clear();
+		rawMet.clear();
+		minuteHR.clear();
+		minuteTC.clear();
+		minuteSpeed.clear();
+		minuteMet.clear();
 	}
 
 	private void computeDistance(){
 		// Figure out how much time has passed since distance last computed
-		long time = new Date().getTime();
+		long time = clock.millis();
 		long epochTimeMillis = time - lastDistanceCompute;
 
-		// Compute how far has been traveled so far
-		double time_travelled = ((double)epochTimeMillis/(double)(1000*60*60));
-		double dist = getCurrent(smoothedSpeed) * time_travelled;
+		double dist;
+		if (routeOdometer) {
+			// The route position already moved distanceCompleted on, record this minute's share
+			dist = distanceCompleted - lastDistanceCompleted;
+		}
+		else {
+			// Compute how far has been traveled so far
+			double time_travelled = ((double)epochTimeMillis/(double)(1000*60*60));
+			dist = getCurrent(smoothedSpeed) * time_travelled;
 
-		// Add that distance to the time series field
-		distance.add(dist);
+			// Add the distance computed to the total distance travelled
+			distanceCompleted = distanceCompleted + dist;
+		}
 
-		// Add the distance computed to the total distance travelled
-		distanceCompleted = distanceCompleted + dist;
+		// Add that distance to the time series field
+		distance.add(time, dist);
+		lastDistanceCompleted = distanceCompleted;
 		Log.i("DataManager","Computing distance, completed so far: " + distanceCompleted);
 		lastDistanceCompute = time;
 	}
 
 	private double computeGuidance(){
 		Log.i("DataManager", "Computing guidance");
-		long time = new Date().getTime(); // Get current time
+		long time = clock.millis(); // Get current time
 		time = time - sessionStartTime; // Compute how long it's been since the run started
 		double pol=policy.getPolicy(time, distanceCompleted, getCurrent(E_PSI)); //Compute guidance
-		guidance.add(pol);
-		long currentTime = System.currentTimeMillis();
+		long currentTime = clock.millis();
+		guidance.add(currentTime, pol);
 		lastGuidanceCompute = currentTime;
+		log(currentTime, SessionJournal.GUIDANCE, pol, distanceCompleted, getCurrent(E_PSI), time);
 		return pol;
 	}
 
-	private double getCurrent(ArrayList<Double> al){
-		if(al.size()==0) { return -10; } // Checking for error
-		return al.get(al.size()-1).doubleValue(); // Retrieves the last item in the arrayList
+	private double getCurrent(TimeSeries ts){
+		return ts.last(-10); // -10 if there is nothing yet
 	}
 
 	public double getCurrent(int type){
+		TimeSeries ts=getSeries(type);
+		return ts==null ? -10 : getCurrent(ts);
+	}
+
+	/**
+	 * The whole timed series behind a field, for range queries and plotting. Read it on the
+	 * thread that calls update.
+	 * @param type One of the getCurrent codes
+	 * @return The series, or null for an unknown code
+	 */
+	public TimeSeries getSeries(int type){
 		switch(type){
-			case(RAWHR): return getCurrent(rawHR);
-			case(RAWTC): return getCurrent(rawTC);
-			case(RAWSPD): return getCurrent(rawSpeed);
-			case(TC): return getCurrent(smoothedTC);
-			case(HR): return getCurrent(smoothedHR);
-			case(PSI): return getCurrent(obsPSI);
-			case(E_TC): return getCurrent(estTC);
-			case(E_PSI): return getCurrent(estPSI);
-			case(SPEED): return getCurrent(smoothedSpeed);
-			case(DIST): return getCurrent(distance);
-			case(GUID): return getCurrent(guidance);
-			default: return -10;
+			case(RAWHR): return rawHR;
+			case(RAWTC): return rawTC;
+			case(RAWSPD): return rawSpeed;
+			case(TC): return smoothedTC;
+			case(HR): return smoothedHR;
+			case(PSI): return obsPSI;
+			case(E_TC): return estTC;
+			case(E_PSI): return estPSI;
+			case(SPEED): return smoothedSpeed;
+			case(DIST): return distance;
+			case(GUID): return guidance;
+			case(MET): return metabolic;
+			default: return null;
 		}
 	}
 
@@ -216,24 +440,6 @@ public class DataManager {
 		return USARIEM.calcPSI(TC, 37.1, HR, 71);
 	}
 
-	private double computeMedian(ArrayList<Double> al){
-		if(al.size() == 0) { return -10; }
-		double[] ad = new double[al.size()];
-		for(int i=0;i<al.size();i++){ ad[i]=al.get(i).doubleValue(); }
-		Arrays.sort(ad); // Sorting the array
-		if(al.size()==1) { return ad[0]; } // If the size of the list is 1, then that's the median
-		// In order to find the median, we must first check if the array has even or odd num elements
-		if(al.size()%2==0) { // Even number of elements
-			int p1=(al.size()/2)-1;
-			int p2=p1+1;
-			return (ad[p1]+ad[p2])/2;
-		}
-		else { // Odd number of elements
-			int p1 = (int) Math.ceil(al.size() / 2);
-			return ad[p1];
-		}
-	}
-
 	/**
 	* Can be used to compute the core temp from HR. Returns -10 on error
 	* @param HR Input HR value
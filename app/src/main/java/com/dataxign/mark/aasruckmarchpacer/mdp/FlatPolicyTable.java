@@ -0,0 +1,54 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * One byte per cell in a single flat buffer, so a lookup is one index into the buffer.
+ * The buffer is either a memory mapped binary policy or a heap buffer filled in from a CSV.
+ */
+public class FlatPolicyTable extends PolicyTable {
+
+	private final ByteBuffer cells;
+
+	FlatPolicyTable(int timePeriods, int psis, int distances, int timePeriodMillis, double psiMin, double psiStep, double distanceUnit, ByteBuffer cells){
+		super(timePeriods, psis, distances, timePeriodMillis, psiMin, psiStep, distanceUnit);
+		this.cells=cells;
+	}
+
+	public int get(int timeIndex, int psiIndex, int distIndex){
+		return cells.get(index(timeIndex, psiIndex, distIndex))&0xFF;
+	}
+
+	void set(int timeIndex, int psiIndex, int distIndex, int action){
+		cells.put(index(timeIndex, psiIndex, distIndex), (byte)action);
+	}
+
+	private int index(int timeIndex, int psiIndex, int distIndex){
+		return (timeIndex*numPsis+psiIndex)*numDistances+distIndex;
+	}
+
+	public long byteSize(){
+		return cells.capacity();
+	}
+
+	protected int encoding(){
+		return ENCODING_FLAT;
+	}
+
+	protected void writeCells(DataOutputStream out) throws IOException{
+		if(cells.hasArray()){
+			out.write(cells.array(), cells.arrayOffset(), cells.capacity());
+			return;
+		}
+		byte[] chunk=new byte[8192];
+		ByteBuffer src=cells.duplicate();
+		src.clear();
+		while(src.hasRemaining()){
+			int n=Math.min(chunk.length, src.remaining());
+			src.get(chunk, 0, n);
+			out.write(chunk, 0, n);
+		}
+	}
+}
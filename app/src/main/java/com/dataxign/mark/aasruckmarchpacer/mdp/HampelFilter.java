@@ -0,0 +1,61 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+/**
+ * Streaming Hampel outlier filter. A sample is an outlier if it is more than threshold scaled
+ * median absolute deviations from the median of the last window samples. The deviation scale is
+ * the sliding median of each sample's distance from the median when it arrived, so both medians
+ * update in O(log window) per sample.
+ *
+ * Outliers still go into the window, so a real change in level is accepted once it has lasted
+ * about half a window.
+ */
+public class HampelFilter {
+
+	private static final double MAD_TO_SD=1.4826; // Scales a MAD to a standard deviation for normal data
+
+	public double threshold=3;  // Scaled MADs from the median before a sample is an outlier
+	public double minScale;     // Smallest scale used, so a run of equal samples doesn't reject everything else
+	public int minSamples=5;    // Samples needed before anything is rejected
+
+	private final SlidingMedian values;
+	private final SlidingMedian deviations;
+
+	/**
+	 * @param window Samples the median is taken over
+	 * @param minScale Smallest deviation scale, in the samples' units
+	 */
+	public HampelFilter(int window, double minScale){
+		values=new SlidingMedian(window);
+		deviations=new SlidingMedian(window);
+		this.minScale=minScale;
+	}
+
+	/**
+	 * Adds a sample to the window
+	 * @return False if the sample is an outlier
+	 */
+	public boolean accept(double x){
+		double median=values.median(x);
+		double deviation=Math.abs(x-median);
+		boolean ok=true;
+		if(values.size()>=minSamples){
+			double scale=Math.max(minScale, MAD_TO_SD*deviations.median(0));
+			ok=deviation<=threshold*scale;
+		}
+		values.add(x);
+		deviations.add(deviation);
+		return ok;
+	}
+
+	/**
+	 * Median of the window, or ifEmpty before any samples
+	 */
+	public double median(double ifEmpty){
+		return values.median(ifEmpty);
+	}
+
+	public void clear(){
+		values.clear();
+		deviations.clear();
+	}
+}
@@ -0,0 +1,95 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import android.util.Log;
+
+import com.dataxign.mark.aasruckmarchpacer.functions.USARIEM;
+import com.dataxign.mark.aasruckmarchpacer.geo.Route;
+
+/**
+ * Pandolf metabolic rate for every route segment at every policy speed, worked out once for a
+ * subject and load so the rate on the march is an array lookup.
+ * Segments with the same grade share a row, so a flat route is a single row of Policy.NUMBER_OF_ACTIONS.
+ */
+public class MetabolicTable {
+
+	private static final double MPH_TO_MS=0.44704;
+
+	public final double bodyWeight;
+	public final double load;
+	public final double terrainFactor;
+
+	private final int numActions=Policy.NUMBER_OF_ACTIONS;
+	private final int[] rowOf;    // Row of each segment
+	private final double[] rates; // Watts, [row*numActions+action-1]
+
+	/**
+	 * @param route Route with its grade profile loaded
+	 * @param bodyWeight Nude body weight, kg
+	 * @param load Clothing and equipment, kg
+	 * @param terrainFactor 1.0 for a treadmill, see USARIEM.calcPandolfMet
+	 */
+	public MetabolicTable(Route route, double bodyWeight, double load, double terrainFactor){
+		this.bodyWeight=bodyWeight;
+		this.load=load;
+		this.terrainFactor=terrainFactor;
+
+		int segments=route.size();
+		rowOf=new int[segments];
+		// Row 0 is always flat, for positions off the route
+		double[] rowGrades=new double[4];
+		int rows=1;
+		HashMap<Double, Integer> seen=new HashMap<Double, Integer>();
+		seen.put(Double.valueOf(0), Integer.valueOf(0));
+		for(int i=0;i<segments;i++){
+			Double g=Double.valueOf(route.grade(i));
+			Integer row=seen.get(g);
+			if(row==null){
+				row=Integer.valueOf(rows);
+				seen.put(g, row);
+				if(rows==rowGrades.length)rowGrades=Arrays.copyOf(rowGrades, rows*2);
+				rowGrades[rows++]=g.doubleValue();
+			}
+			rowOf[i]=row.intValue();
+		}
+
+		rates=new double[rows*numActions];
+		for(int r=0;r<rows;r++){
+			for(int a=1;a<=numActions;a++){
+				rates[r*numActions+a-1]=USARIEM.calcPandolfMet(bodyWeight, load, terrainFactor, Policy.speedValue(a)*MPH_TO_MS, rowGrades[r]);
+			}
+		}
+		Log.d("MetabolicTable", segments+" segments, "+rows+" distinct grades");
+	}
+
+	/**
+	 * Metabolic rate on a segment at a policy speed
+	 * @param segment Route segment, out of range (off the route) counts as flat
+	 * @param action Policy speed action, 1 to NUMBER_OF_ACTIONS
+	 * @return Watts
+	 */
+	public double rate(int segment, int action){
+		int row=segment>=0 && segment<rowOf.length ? rowOf[segment] : 0;
+		return rates[row*numActions+action-1];
+	}
+
+	/**
+	 * Metabolic rate on a segment at the policy speed nearest a measured one
+	 * @param mph Speed, miles per hour
+	 */
+	public double rate(int segment, double mph){
+		return rate(segment, action(mph));
+	}
+
+	/**
+	 * The policy speed action nearest a speed, the inverse of Policy.speedValue
+	 */
+	public static int action(double mph){
+		int a=(int)Math.round(mph/Policy.speedValue(2))+1;
+		if(a<1)a=1;
+		if(a>Policy.NUMBER_OF_ACTIONS)a=Policy.NUMBER_OF_ACTIONS;
+		return a;
+	}
+}
@@ -35,6 +35,7 @@ public class ObanSensor {
     private Activity act;
 
     public int given_roster_id; // The roster number the app will look for to read data from
+    private SquadMonitor squad; // Team mode, every sensor in range goes here. Null for one sensor
     private final int ODIC_MANUF_ID = 2154; // The BLE ODIC manufacturer ID
     private final int bg = 7; // Beginning index in the advertisement data
 
@@ -79,6 +80,10 @@ public class ObanSensor {
             // If the device is our registered one, then update the sensor values
             boolean name_correct = (device_name == null);
             boolean manid_correct = (manufacturer_id == ODIC_MANUF_ID);
+            if (squad != null && name_correct && manid_correct) {
+                // Team mode takes every ODIC sensor, decoding only what the squad pipeline needs
+                squad.onSample(device_roster_id, get_unsigned(sensor_data[10+bg]), get_ECT(sensor_data[11+bg]));
+            }
             boolean roster_correct = (device_roster_id == given_roster_id);
             if (name_correct && manid_correct && roster_correct) {
                 message_length = sensor_data[0+bg];
@@ -104,14 +109,34 @@ public class ObanSensor {
     };
 
     // Constructor
-    @SuppressLint("MissingPermission")
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     public ObanSensor(int given_roster_id, Context ctxt, Activity act) {
         Log.d("Sensor", "Creating OBAN Sensor...");
         this.given_roster_id = given_roster_id;
         this.ctxt = ctxt;
         this.act = act;
+        startScan();
+    }
 
+    /**
+     * Team mode, reads every sensor in range into a squad monitor as well as tracking the
+     * user's own sensor
+     * @param given_roster_id The user's own roster number
+     * @param squad Gets every reading
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public ObanSensor(int given_roster_id, SquadMonitor squad, Context ctxt, Activity act) {
+        Log.d("Sensor", "Creating OBAN Sensor for the squad...");
+        this.given_roster_id = given_roster_id;
+        this.squad = squad;
+        this.ctxt = ctxt;
+        this.act = act;
+        startScan();
+    }
+
+    @SuppressLint("MissingPermission")
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void startScan() {
         // Setting up Bluetooth stuff
         BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
         BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
@@ -123,7 +148,7 @@ public class ObanSensor {
                     .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
                     .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
                     .setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
-                    .setNumOfMatches(ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT)
+                    .setNumOfMatches(squad != null ? ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT : ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT)
                     .setReportDelay(0L)
                     .build();
         }
@@ -156,6 +181,15 @@ public class ObanSensor {
         return b & 0xFF;
     }
 
+    /**
+     * Returns a core temperature byte in C, P8u.1:32
+     * @param b The byte, tenths of a degree above 32
+     * @return The temperature
+     */
+    private double get_ECT(byte b) {
+        return get_unsigned(b) / 10.0 + 32;
+    }
+
     /**
      * Returns the integer value from an unsigned string of 8n bits
      * @param b Array of bytes
@@ -164,7 +198,7 @@ public class ObanSensor {
     private int get_u8x(byte[] b) {
         ByteBuffer rr = ByteBuffer.wrap(b);
         rr.position(0);
-        int result = rr.getShort();
+        int result = rr.getShort() & 0xFFFF;
         return result;
     }
 
@@ -1,86 +1,194 @@
 package com.dataxign.mark.aasruckmarchpacer.mdp;
 
-import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.NoSuchElementException;
-import java.util.StringTokenizer;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.content.Context;
 import android.content.res.Resources;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import com.dataxign.mark.aasruckmarchpacer.R;
 
 public class Policy {
 	
-	private static final int NUMBER_OF_ACTIONS=36;
+	public static final int NUMBER_OF_ACTIONS=36;
+	// Grid size of CSV policies, binary policies carry their own grid
 	private static final int NUMBER_OF_PSIS=39;
 	private static final int NUMBER_OF_DISTANCES=900;
 	private static final int NUMBER_OF_TIME_PERIODS=30;
 	//public static final String POLICY_FILE_NAME="policy_lessnoise_7_5_oldclothing.csv";
 	public String policyFileName="None";
-	private final double DISTANCE_UNIT=0.2*(2.0/60.0);
 	
 	public int tIdx=0;
 	public int dIdx=0;
 	public int pIdx=0;
 	public double unGuide=0;
 	
-	public boolean gotPolicy=false;
-	
-	int[][][] policy; //[Time period][PSI][Dist]
-	
+	public volatile boolean gotPolicy=false;
+
+	/**
+	 * Told when a background policy load finishes, on the loader thread
+	 */
+	public interface OnPolicyLoadedListener {
+		void onPolicyLoaded(boolean loaded);
+	}
+
+	// Replacement policies are built here while the active one keeps serving lookups
+	private static final ExecutorService loader=Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t=new Thread(r, "PolicyLoader");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+
+	private final AtomicReference<PolicyTable> policy=new AtomicReference<PolicyTable>(); //[Time period][PSI][Dist]
+
+	/**
+	 * Creates a policy with no table. getPolicy returns 0 until one is loaded.
+	 */
+	public Policy(){
+	}
+
+	/**
+	 * Creates a policy around an already loaded table, such as one from PolicySolver
+	 */
+	public Policy(PolicyTable table){
+		swap(table);
+	}
+
 	public Policy(Resources rs){
 		//Read in file
-		policy = new int[NUMBER_OF_TIME_PERIODS][NUMBER_OF_PSIS][NUMBER_OF_DISTANCES];
-		BufferedReader in = new BufferedReader(new InputStreamReader(rs.openRawResource(R.raw.policy_7_5_actual_relaxsmooth0120)));
-		readPolicyFile(in);
+		swap(readPolicyFile(rs.openRawResource(R.raw.policy_7_5_actual_relaxsmooth0120), null));
 	}
 
 	public Policy(Uri uri, Context context) {
-		policy = new int[NUMBER_OF_TIME_PERIODS][NUMBER_OF_PSIS][NUMBER_OF_DISTANCES];
+		swap(readPolicy(uri, context));
+	}
+
+	/**
+	 * Loads a replacement policy on a background thread and swaps it in once it is ready.
+	 * The current table keeps answering getPolicy until then, and is kept if the load fails.
+	 * @param uri The policy file
+	 * @param context App context
+	 * @param listener Told when the load finishes, may be null
+	 */
+	public void loadAsync(final Uri uri, final Context context, final OnPolicyLoadedListener listener){
+		loader.execute(new Runnable() {
+			public void run() {
+				boolean loaded=swap(readPolicy(uri, context));
+				if(listener!=null)listener.onPolicyLoaded(loaded);
+			}
+		});
+	}
+
+	/**
+	 * Publishes a newly loaded table for the next getPolicy call
+	 * @return false if there was nothing to swap in
+	 */
+	private boolean swap(PolicyTable table){
+		if(table==null)return false;
+		policy.set(table);
+		gotPolicy=true;
+		return true;
+	}
+
+	/**
+	 * Binary policies are mapped straight from the file, anything else is read as CSV
+	 * @return The table, or null if it could not be read
+	 */
+	private static PolicyTable readPolicy(Uri uri, Context context){
+		try {
+			ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+			if(pfd!=null){
+				PolicyTable table=readBinaryPolicy(pfd);
+				if(table!=null)return table;
+			}
+		} catch (FileNotFoundException e) {
+			Log.e("Policy","Failed to open file descriptor. Trying as a stream.");
+		}
 		try {
 			InputStream is = context.getContentResolver().openInputStream(uri);
-			BufferedReader in = new BufferedReader(new InputStreamReader(is));
-			readPolicyFile(in);
+			return readPolicyFile(is, new PolicyCache(context));
 		} catch (FileNotFoundException e) {
 			Log.e("Route","Failed to open file input stream. IOException.");
+			return null;
 		}
 	}
 	
-	private void readPolicyFile(BufferedReader in){
+	/**
+	 * Memory maps a binary policy
+	 * @param pfd Descriptor of the policy file, closed on return
+	 * @return The table, or null if the file is not a binary policy
+	 */
+	private static PolicyTable readBinaryPolicy(ParcelFileDescriptor pfd){
 		long startTime=System.currentTimeMillis();
-		Log.d("Policy", "Reading Policy... (Can take a while)");
+		ParcelFileDescriptor.AutoCloseInputStream is=new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+		PolicyTable table;
 		try{
-			for(int tp=0;tp<NUMBER_OF_TIME_PERIODS;tp++){
-				for(int npsi=0;npsi<NUMBER_OF_PSIS;npsi++){
-					String distances=in.readLine();
-					StringTokenizer st = new StringTokenizer(distances,",");
-					for (int dist=0;dist<NUMBER_OF_DISTANCES;dist++){
-						try {
-							String temp = st.nextToken();
-							try {
-								policy[tp][npsi][dist] = Integer.parseInt(temp);
-							} catch (NumberFormatException nfe) {
-								policy[tp][npsi][dist] = 0;
-							}
-						} catch (NoSuchElementException nsee) {
-							String temp = "0";
-						}
-					}
-				}
+			FileChannel ch=is.getChannel();
+			ByteBuffer head=ByteBuffer.allocate(4);
+			ch.read(head, 0);
+			if(!PolicyTable.isBinary(head.array(), head.position()))return null;
+			table=PolicyTable.map(ch);
+		} catch(IOException e){
+			Log.e("Policy", "Can't map binary policy file. "+e.getMessage());
+			return null;
+		} finally {
+			try { is.close(); } catch (IOException e) { Log.w("Policy", "Failed to close policy file"); }
+		}
+		long tookTime=System.currentTimeMillis()-startTime;
+		Log.d("Policy", "Binary Policy Mapped! "+table.numTimePeriods+"x"+table.numPsis+"x"+table.numDistances+" in "+tookTime + "ms");
+		return table;
+	}
+
+	/**
+	 * Writes the loaded policy in the binary format so it can be mapped next time
+	 * @param out Stream to write to, left open
+	 */
+	public void writeBinaryPolicy(OutputStream out) throws IOException{
+		PolicyTable table=policy.get();
+		if(table==null)throw new IOException("No policy loaded");
+		table.write(out);
+	}
+
+	/**
+	 * Reads a CSV policy
+	 * @param in CSV source, closed on return
+	 * @param cache Cache of parsed policies to go through, or null to always parse
+	 * @return The table, or null if it could not be read
+	 */
+	private static PolicyTable readPolicyFile(InputStream in, PolicyCache cache){
+		long startTime=System.currentTimeMillis();
+		Log.d("Policy", "Reading Policy...");
+		PolicyTable table;
+		try{
+			if(cache!=null){
+				table=cache.load(in, NUMBER_OF_TIME_PERIODS, NUMBER_OF_PSIS, NUMBER_OF_DISTANCES);
+			}
+			else{
+				table=RunLengthPolicyTable.compact(PolicyCsvParser.parse(in, NUMBER_OF_TIME_PERIODS, NUMBER_OF_PSIS, NUMBER_OF_DISTANCES));
 			}
 		} catch(IOException e){
             Log.e("Policy", "Uh Oh Can't read policy file. This is BAD! "+e.getMessage());
+			return null;
+		} finally {
+			try { in.close(); } catch (IOException e) { Log.w("Policy", "Failed to close policy file"); }
 		}
 		long tookTime=System.currentTimeMillis()-startTime;
 		Log.d("Policy", "Policy Read Done! "+tookTime + "ms");
-		gotPolicy=true;
-
+		return table;
 	}
 	/**
 	 * 
@@ -90,27 +198,28 @@ public class Policy {
 	 * @return returns optimal movement speed
 	 */
 	public double getPolicy(long time, double distance, double psi){
-		int timeIndex=timeIndex(time);
-		if(timeIndex>NUMBER_OF_TIME_PERIODS-1)return 0;
-		int distIndex=distIndex(distance);
-		if(distIndex>NUMBER_OF_DISTANCES-1)return 0;
-		int psiIndex=psiIndex(psi);
-		int speed=policy[timeIndex][psiIndex][distIndex];
+		PolicyTable table=policy.get(); // Read once so a swap can't land mid lookup
+		if(table==null)return 0;
+		int timeIndex=timeIndex(time, table);
+		if(timeIndex>table.numTimePeriods-1)return 0;
+		int distIndex=distIndex(distance, table);
+		int psiIndex=psiIndex(psi, table);
+		int speed=table.get(timeIndex, psiIndex, distIndex);
 		unGuide=speed;
 		return speedValue(speed);
 	}
 
 	/**
 	 * Converts from real time to time index
-	 * There are 30 epochs
+	 * For CSV policies there are 30 epochs
 	 * Epochs are 2 minutes each
 	 * Index 0 = Time 0 to time <2
 	 * Index 30 = Time 58
 	 * @param time in milliseconds since the start of the course
 	 * @return timeIndex (0-30)
 	 */
-	private int timeIndex(long time){
-		int timeIndex=(int) Math.round((double)time/(1000*120)); //1000 for ms and 120 for two minutes
+	private int timeIndex(long time, PolicyTable table){
+		int timeIndex=(int) Math.round((double)time/table.timePeriodMillis);
 		//Possibly limit timeIndex to 30 but maybe this can be given 
 		//if(timeIndex>=NUMBER_OF_TIME_PERIODS)timeIndex=29;
 		tIdx=timeIndex;
@@ -118,30 +227,30 @@ public class Policy {
 	}
 	
 	/**
-	 * PSI is from 0.5 to 10.0 in 0.25 increments
+	 * For CSV policies PSI is from 0.5 to 10.0 in 0.25 increments
 	 * Index 0 is 0.5 psi
 	 * Index 38 is 10 psi
 	 * @param psi actual PSI
 	 * @return psiIndex
 	 */
-	private int psiIndex(double psi){
-		int psiIndex=(int)Math.round(psi*(double)4)-2;
+	private int psiIndex(double psi, PolicyTable table){
+		int psiIndex=(int)Math.round((psi-table.psiMin)/table.psiStep);
 		if(psiIndex<0)psiIndex=0;
-		if(psiIndex>38)psiIndex=38;
+		if(psiIndex>table.numPsis-1)psiIndex=table.numPsis-1;
 		pIdx=psiIndex;
 		return psiIndex;
 	}
 	/**
-	 * distanceUnit=0.2*(2/60);
+	 * For CSV policies distanceUnit=0.2*(2/60);
 	 * numDistanceUnits=900;
 	 * @param distance in miles
 	 * @return
 	 */
-	private int distIndex(double distance){
+	private int distIndex(double distance, PolicyTable table){
 		
-		int distanceIndex=(int)(distance/DISTANCE_UNIT);
+		int distanceIndex=(int)(distance/table.distanceUnit);
 		if(distanceIndex<0)distanceIndex=0;
-		if(distanceIndex>899)distanceIndex=899;
+		if(distanceIndex>table.numDistances-1)distanceIndex=table.numDistances-1;
 		dIdx=distanceIndex;
 		return distanceIndex;
 	}
@@ -152,7 +261,7 @@ public class Policy {
 	 * @param speedIndex Index returned from policy
 	 * @return Actual speed in miles per hour that the policy recommends
 	 */
-	private double speedValue(int speedIndex){
+	public static double speedValue(int speedIndex){
 		double speedValue=((double)(speedIndex-1)*.2);
 		return speedValue;
 	}
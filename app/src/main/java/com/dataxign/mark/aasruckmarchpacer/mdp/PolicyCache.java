@@ -0,0 +1,62 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.dataxign.mark.aasruckmarchpacer.functions.ContentCache;
+import com.dataxign.mark.aasruckmarchpacer.functions.HelperStuff;
+
+/**
+ * Keeps parsed CSV policies in the app cache dir in the binary policy format, keyed by a hash
+ * of the CSV content. Opening a policy that has been seen before is a hash of the source plus
+ * a bulk load of the cached table instead of a full parse.
+ */
+public class PolicyCache {
+
+	private static final int MAX_ENTRIES=8;
+
+	private final ContentCache cache;
+
+	public PolicyCache(Context cx){
+		cache=new ContentCache(new File(cx.getCacheDir(), "policies"), "policy_", ".opap", MAX_ENTRIES);
+	}
+
+	/**
+	 * Loads a CSV policy, from the cache when this content has been parsed before
+	 * @param in CSV source, left open
+	 * @param timePeriods Grid size of the CSV
+	 * @param psis Grid size of the CSV
+	 * @param distances Grid size of the CSV
+	 * @return The policy table
+	 */
+	public PolicyTable load(InputStream in, int timePeriods, int psis, int distances) throws IOException{
+		ByteBuffer csv=ContentCache.readFully(in);
+		long hash=HelperStuff.contentHash(csv);
+		File cached=cache.entry(Long.toHexString(hash)+"_"+timePeriods+"x"+psis+"x"+distances);
+
+		if(cached.isFile()){
+			try{
+				PolicyTable table=PolicyTable.fromBuffer(cache.map(cached));
+				Log.d("PolicyCache", "Policy loaded from cache "+cached.getName());
+				return table;
+			} catch(IOException e){
+				Log.w("PolicyCache", "Dropping bad cached policy "+cached.getName()+". "+e.getMessage());
+				cached.delete();
+			}
+		}
+
+		final PolicyTable table=RunLengthPolicyTable.compact(PolicyCsvParser.parse(csv.array(), csv.limit(), timePeriods, psis, distances));
+		cache.store(cached, new ContentCache.Writer() {
+			public void write(OutputStream out) throws IOException {
+				table.write(out);
+			}
+		});
+		return table;
+	}
+}
@@ -0,0 +1,173 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.dataxign.mark.aasruckmarchpacer.functions.ContentCache;
+
+/**
+ * Reads a CSV policy straight into a PolicyTable. The file is pulled into one byte array,
+ * split on time period blocks (one block is a row per PSI), and the blocks are tokenized
+ * in parallel at the byte level on a shared pool. No Strings or boxed values are created per cell.
+ *
+ * Cells that are not a plain number read as 0, and so do cells missing from short rows.
+ */
+public class PolicyCsvParser {
+
+	private static ExecutorService pool=null;
+
+	private final byte[] data;
+	private final int length;
+	private final FlatPolicyTable table;
+	private int[] blockStart; // offset of the first row of each time period, plus the end
+
+	private PolicyCsvParser(byte[] data, int length, FlatPolicyTable table){
+		this.data=data;
+		this.length=length;
+		this.table=table;
+	}
+
+	/**
+	 * Parses a whole CSV policy stream
+	 * @param in Stream to read, left open
+	 * @return The filled in table
+	 */
+	public static FlatPolicyTable parse(InputStream in, int timePeriods, int psis, int distances) throws IOException{
+		ByteBuffer buf=ContentCache.readFully(in);
+		return parse(buf.array(), buf.limit(), timePeriods, psis, distances);
+	}
+
+	/**
+	 * Parses a CSV policy held in memory
+	 * @param data Bytes of the file
+	 * @param length Number of valid bytes in data
+	 * @return The filled in table
+	 */
+	public static FlatPolicyTable parse(byte[] data, int length, int timePeriods, int psis, int distances){
+		PolicyCsvParser parser=new PolicyCsvParser(data, length, PolicyTable.allocate(timePeriods, psis, distances));
+		parser.findBlocks();
+		parser.parseBlocks(Runtime.getRuntime().availableProcessors());
+		return parser.table;
+	}
+
+	/**
+	 * Single pass over the line ends to find where each time period block starts
+	 */
+	private void findBlocks(){
+		int blocks=table.numTimePeriods;
+		int rowsPerBlock=table.numPsis;
+		blockStart=new int[blocks+1];
+		int row=0;
+		int block=1;
+		for(int i=0;i<length && block<blocks;i++){
+			if(data[i]=='\n'){
+				row++;
+				if(row==rowsPerBlock){
+					blockStart[block++]=i+1;
+					row=0;
+				}
+			}
+		}
+		// A short file leaves the remaining blocks empty
+		while(block<=blocks)blockStart[block++]=length;
+	}
+
+	private void parseBlocks(int threads){
+		final int blocks=table.numTimePeriods;
+		final int workers=Math.max(1, Math.min(threads, blocks));
+		if(workers==1){
+			for(int b=0;b<blocks;b++)parseBlock(b);
+			return;
+		}
+		Future<?>[] parts=new Future<?>[workers-1];
+		for(int w=1;w<workers;w++){
+			final int first=w;
+			parts[w-1]=pool().submit(new Runnable() {
+				public void run() {
+					for(int b=first;b<blocks;b+=workers)parseBlock(b);
+				}
+			});
+		}
+		for(int b=0;b<blocks;b+=workers)parseBlock(b);
+
+		// The table isn't done until every worker is, so an interrupt waits them out and is passed on after
+		boolean interrupted=false;
+		try{
+			for(int w=0;w<parts.length;w++){
+				while(true){
+					try {
+						parts[w].get();
+						break;
+					} catch (InterruptedException e) {
+						interrupted=true;
+					}
+				}
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Policy parse failed", e.getCause());
+		} finally {
+			if(interrupted)Thread.currentThread().interrupt();
+		}
+	}
+
+	// Shared by every parse, one thread short of the cores since the caller parses too
+	private static synchronized ExecutorService pool(){
+		if(pool==null){
+			int threads=Math.max(1, Runtime.getRuntime().availableProcessors()-1);
+			pool=Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private int count=0;
+				public synchronized Thread newThread(Runnable r) {
+					Thread t=new Thread(r, "PolicyCsv-"+(++count));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	private void parseBlock(int tp){
+		int pos=blockStart[tp];
+		int end=blockStart[tp+1];
+		for(int npsi=0;npsi<table.numPsis && pos<end;npsi++){
+			pos=parseRow(tp, npsi, pos, end);
+		}
+	}
+
+	/**
+	 * Tokenizes one row into the table
+	 * @return Offset of the start of the next row
+	 */
+	private int parseRow(int tp, int npsi, int pos, int end){
+		int dist=0;
+		int value=0;
+		boolean valid=false;
+		boolean bad=false;
+		while(pos<end){
+			byte c=data[pos++];
+			if(c=='\n')break;
+			if(c==','){
+				if(dist<table.numDistances)table.set(tp, npsi, dist, valid && !bad ? value : 0);
+				dist++;
+				value=0;
+				valid=false;
+				bad=false;
+			}
+			else if(c>='0' && c<='9'){
+				value=value*10+(c-'0');
+				valid=true;
+			}
+			else if(c!='\r'){
+				bad=true;
+			}
+		}
+		if(dist<table.numDistances && valid && !bad)table.set(tp, npsi, dist, value);
+		return pos;
+	}
+}
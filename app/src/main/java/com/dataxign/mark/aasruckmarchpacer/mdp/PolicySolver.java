@@ -0,0 +1,283 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import com.dataxign.mark.aasruckmarchpacer.functions.USARIEM;
+
+/**
+ * Generates a policy by backward induction over the same [Time period][PSI][Dist] grid that
+ * Policy reads, so new load and clothing conditions can be solved on the device or a laptop.
+ * On a laptop, run the app:solvePolicy Gradle task.
+ *
+ * Each time period the marcher picks one of the speed actions. Distance advances by speed times
+ * the period length. Core temperature relaxes toward the steady state set by the Pandolf
+ * metabolic rate at that speed, with the Kalman model's process noise (gamma) on top. PSI is
+ * read back from core temperature through the Kalman model's HR observation curve. A period
+ * costs the expected PSI plus a penalty for ending over the PSI limit, and finishing the
+ * horizon short of the goal costs the miss penalty. Once the goal is reached the action is stop.
+ *
+ * Time periods are solved from the last to the first, and each period is solved in parallel
+ * across PSI slices on a fork-join pool.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class PolicySolver {
+
+	private static final double MPH_TO_MS=0.44704;
+	private static final int NOISE_SPREAD=3; // PSI steps either side the noise is spread over
+
+	// Grid, defaults match CSV policies
+	public int numTimePeriods=30;
+	public int numPsis=39;
+	public int numDistances=900;
+	public int numActions=Policy.NUMBER_OF_ACTIONS;
+	public int timePeriodMillis=PolicyTable.DEFAULT_TIME_PERIOD_MILLIS;
+	public double psiMin=PolicyTable.DEFAULT_PSI_MIN;
+	public double psiStep=PolicyTable.DEFAULT_PSI_STEP;
+	public double distanceUnit=PolicyTable.DEFAULT_DISTANCE_UNIT;
+
+	// Course
+	public double goalMiles=5.0;
+	public double psiLimit=7.5;
+
+	// Subject and load, see USARIEM.calcPandolfMet
+	public double bodyWeight=80;
+	public double load=30;
+	public double terrainFactor=1.0;
+	public double grade=0;
+
+	// Heat balance
+	public double restTC=37.1;
+	public double restHR=71;
+	public double coolingWattsPerDegree=350; // Extra heat lost per degree of core temperature over rest
+	public double specificHeat=3470; // J/kg/C for body tissue
+	public KalmanState model=new KalmanState();
+
+	// Costs
+	public double psiCost=1;
+	public double overLimitPenalty=100;
+	public double missPenalty=10000;
+
+	// Transition tables shared by every time period, [PSI*numActions+action]
+	private int[] nextPsiFirst;
+	private double[] nextPsiProb; // [(PSI*numActions+action)*width+k]
+	private double[] stageCost;
+	private int[] advance;
+	private double[] advanceFrac;
+	private int width;
+	private int goalIndex;
+
+	/**
+	 * Solves the policy on this solver's grid
+	 * @return The compacted table, ready to write out
+	 * @throws IllegalArgumentException If goalMiles is past the end of the distance grid
+	 */
+	public PolicyTable solve(){
+		buildTransitions();
+		FlatPolicyTable table=PolicyTable.allocate(numTimePeriods, numPsis, numDistances, timePeriodMillis, psiMin, psiStep, distanceUnit);
+		double[] next=new double[numPsis*numDistances];
+		double[] current=new double[numPsis*numDistances];
+
+		// Missing the goal at the end of the horizon
+		for(int p=0;p<numPsis;p++){
+			for(int d=0;d<numDistances;d++){
+				next[p*numDistances+d]=d>=goalIndex ? 0 : missPenalty;
+			}
+		}
+
+		ForkJoinPool pool=new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try{
+			for(int tp=numTimePeriods-1;tp>=0;tp--){
+				pool.invoke(new SliceTask(tp, 0, numPsis, next, current, table));
+				double[] swap=next;
+				next=current;
+				current=swap;
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return RunLengthPolicyTable.compact(table);
+	}
+
+	/**
+	 * Solves one time period for a range of PSI slices, splitting until one slice is left
+	 */
+	private class SliceTask extends RecursiveAction {
+		final int tp, from, to;
+		final double[] next, current;
+		final FlatPolicyTable table;
+
+		SliceTask(int tp, int from, int to, double[] next, double[] current, FlatPolicyTable table){
+			this.tp=tp;
+			this.from=from;
+			this.to=to;
+			this.next=next;
+			this.current=current;
+			this.table=table;
+		}
+
+		protected void compute(){
+			if(to-from>1){
+				int mid=(from+to)>>>1;
+				invokeAll(new SliceTask(tp, from, mid, next, current, table), new SliceTask(tp, mid, to, next, current, table));
+				return;
+			}
+			for(int p=from;p<to;p++)solveSlice(tp, p, next, current, table);
+		}
+	}
+
+	private void solveSlice(int tp, int p, double[] next, double[] current, FlatPolicyTable table){
+		int lastD=numDistances-1;
+		for(int d=0;d<numDistances;d++){
+			if(d>=goalIndex){
+				current[p*numDistances+d]=0;
+				table.set(tp, p, d, 1);
+				continue;
+			}
+			double best=Double.MAX_VALUE;
+			int bestAction=1;
+			for(int a=1;a<=numActions;a++){
+				int ta=p*numActions+(a-1);
+				int d0=Math.min(d+advance[a-1], lastD);
+				int d1=Math.min(d0+1, lastD);
+				double f=advanceFrac[a-1];
+				double q=stageCost[ta];
+				int first=nextPsiFirst[ta];
+				int base=ta*width;
+				for(int k=0;k<width;k++){
+					double prob=nextPsiProb[base+k];
+					if(prob==0)continue;
+					int row=(first+k)*numDistances;
+					q+=prob*((1-f)*next[row+d0]+f*next[row+d1]);
+				}
+				// Strictly less keeps the slowest of equally good speeds
+				if(q<best){
+					best=q;
+					bestAction=a;
+				}
+			}
+			current[p*numDistances+d]=best;
+			table.set(tp, p, d, bestAction);
+		}
+	}
+
+	/**
+	 * Precomputes the distance and PSI transitions and the stage cost of every (PSI, action)
+	 */
+	private void buildTransitions(){
+		double periodSeconds=timePeriodMillis/1000.0;
+		double periodHours=periodSeconds/3600.0;
+		goalIndex=(int)Math.ceil(goalMiles/distanceUnit-1e-9);
+		if(goalIndex>=numDistances){
+			// Every end state would miss, the solve would run but the policy would mean nothing
+			throw new IllegalArgumentException("Goal of "+goalMiles+" miles is past the grid, which ends at "
+					+(numDistances-1)*distanceUnit+" miles");
+		}
+
+		advance=new int[numActions];
+		advanceFrac=new double[numActions];
+		for(int a=1;a<=numActions;a++){
+			double units=Policy.speedValue(a)*periodHours/distanceUnit;
+			advance[a-1]=(int)Math.floor(units+1e-9);
+			advanceFrac[a-1]=Math.max(0, units-advance[a-1]);
+		}
+
+		width=2*NOISE_SPREAD+1;
+		nextPsiFirst=new int[numPsis*numActions];
+		nextPsiProb=new double[numPsis*numActions*width];
+		stageCost=new double[numPsis*numActions];
+
+		double restMet=USARIEM.calcPandolfMet(bodyWeight, load, terrainFactor, 0, grade);
+		double tau=bodyWeight*specificHeat/coolingWattsPerDegree;
+		double decay=Math.exp(-periodSeconds/tau);
+		double noiseTC=model.gamma*Math.sqrt(periodSeconds/60.0); // gamma is per one minute step
+
+		for(int p=0;p<numPsis;p++){
+			double tc=tcFromPsi(psiMin+p*psiStep);
+			for(int a=1;a<=numActions;a++){
+				int ta=p*numActions+(a-1);
+				double met=USARIEM.calcPandolfMet(bodyWeight, load, terrainFactor, Policy.speedValue(a)*MPH_TO_MS, grade);
+				double steadyTC=restTC+(met-restMet)/coolingWattsPerDegree;
+				double tcNext=steadyTC+(tc-steadyTC)*decay;
+
+				double meanIdx=(psiFromTc(tcNext)-psiMin)/psiStep;
+				double slope=(psiFromTc(tcNext+0.01)-psiFromTc(tcNext-0.01))/0.02;
+				double sdIdx=Math.abs(slope)*noiseTC/psiStep;
+				spread(ta, meanIdx, sdIdx);
+
+				double cost=0;
+				for(int k=0;k<width;k++){
+					double prob=nextPsiProb[ta*width+k];
+					double psi=psiMin+(nextPsiFirst[ta]+k)*psiStep;
+					cost+=prob*(psiCost*psi+(psi>psiLimit ? overLimitPenalty : 0));
+				}
+				stageCost[ta]=cost;
+			}
+		}
+	}
+
+	/**
+	 * Spreads the next PSI over the grid as a discretized normal around the mean index.
+	 * Mass past either end of the grid lands on the end.
+	 */
+	private void spread(int ta, double meanIdx, double sdIdx){
+		int center=(int)Math.round(meanIdx);
+		int first=Math.max(0, Math.min(center-NOISE_SPREAD, numPsis-width));
+		if(numPsis<width)first=0;
+		nextPsiFirst[ta]=first;
+		int base=ta*width;
+		double total=0;
+		if(sdIdx<1e-6){
+			// No noise, split between the two nearest grid points
+			int lo=(int)Math.floor(meanIdx);
+			double frac=meanIdx-lo;
+			addMass(base, first, lo, 1-frac);
+			addMass(base, first, lo+1, frac);
+			total=1;
+		}
+		else{
+			for(int i=center-NOISE_SPREAD;i<=center+NOISE_SPREAD;i++){
+				double z=(i-meanIdx)/sdIdx;
+				double w=Math.exp(-0.5*z*z);
+				addMass(base, first, i, w);
+				total+=w;
+			}
+		}
+		for(int k=0;k<width;k++)nextPsiProb[base+k]/=total;
+	}
+
+	private void addMass(int base, int first, int idx, double mass){
+		if(idx<0)idx=0;
+		if(idx>numPsis-1)idx=numPsis-1;
+		int k=idx-first;
+		if(k<0)k=0;
+		if(k>width-1)k=width-1;
+		nextPsiProb[base+k]+=mass;
+	}
+
+	/**
+	 * PSI for a core temperature, with HR from the Kalman model's observation curve
+	 */
+	private double psiFromTc(double tc){
+		double hr=model.b_2*tc*tc+model.b_1*tc+model.b_0;
+		return USARIEM.calcPSI(tc, restTC, hr, restHR);
+	}
+
+	/**
+	 * Inverts psiFromTc by bisection, it rises with core temperature over the working range
+	 */
+	private double tcFromPsi(double psi){
+		double lo=34.0;
+		double hi=-model.b_1/(2*model.b_2); // Peak of the HR curve
+		for(int i=0;i<60;i++){
+			double mid=0.5*(lo+hi);
+			if(psiFromTc(mid)<psi)lo=mid;
+			else hi=mid;
+		}
+		return 0.5*(lo+hi);
+	}
+}
@@ -0,0 +1,169 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A policy table indexed [Time period][PSI][Dist] holding one speed action per cell, along
+ * with the grid that maps real time, PSI and distance onto those indices. The grid travels
+ * with the table so policies with finer steps or longer horizons load without a recompile.
+ *
+ * Binary policy layout (big-endian):
+ *  int magic ("OPAP"), int version, int encoding, int time periods, int psis, int distances,
+ *  int time period millis, double psi min, double psi step, double distance unit (miles),
+ *  followed by the cells in the given encoding.
+ * Version 1 files have no encoding or grid fields and hold flat cells on the default grid.
+ */
+public abstract class PolicyTable {
+
+	public static final int MAGIC=0x4F504150; // "OPAP"
+	public static final int VERSION=2;
+	public static final int HEADER_BYTES=52;
+	public static final int HEADER_BYTES_V1=20;
+
+	public static final int ENCODING_FLAT=0;
+	public static final int ENCODING_RUN_LENGTH=1;
+
+	// The grid CSV and version 1 policies are built on
+	public static final int DEFAULT_TIME_PERIOD_MILLIS=1000*120;
+	public static final double DEFAULT_PSI_MIN=0.5;
+	public static final double DEFAULT_PSI_STEP=0.25;
+	public static final double DEFAULT_DISTANCE_UNIT=0.2*(2.0/60.0);
+
+	public final int numTimePeriods;
+	public final int numPsis;
+	public final int numDistances;
+	public final int timePeriodMillis;
+	public final double psiMin;
+	public final double psiStep;
+	public final double distanceUnit;
+
+	protected PolicyTable(int timePeriods, int psis, int distances, int timePeriodMillis, double psiMin, double psiStep, double distanceUnit){
+		numTimePeriods=timePeriods;
+		numPsis=psis;
+		numDistances=distances;
+		this.timePeriodMillis=timePeriodMillis;
+		this.psiMin=psiMin;
+		this.psiStep=psiStep;
+		this.distanceUnit=distanceUnit;
+	}
+
+	/**
+	 * Action stored in a cell
+	 */
+	public abstract int get(int timeIndex, int psiIndex, int distIndex);
+
+	/**
+	 * Approximate number of bytes the cells take up
+	 */
+	public abstract long byteSize();
+
+	protected abstract int encoding();
+
+	protected abstract void writeCells(DataOutputStream out) throws IOException;
+
+	/**
+	 * Creates an empty flat heap table on the default grid, every cell starts as action 0
+	 */
+	public static FlatPolicyTable allocate(int timePeriods, int psis, int distances){
+		return allocate(timePeriods, psis, distances, DEFAULT_TIME_PERIOD_MILLIS, DEFAULT_PSI_MIN, DEFAULT_PSI_STEP, DEFAULT_DISTANCE_UNIT);
+	}
+
+	/**
+	 * Creates an empty flat heap table on the given grid, every cell starts as action 0
+	 */
+	public static FlatPolicyTable allocate(int timePeriods, int psis, int distances, int timePeriodMillis, double psiMin, double psiStep, double distanceUnit){
+		return new FlatPolicyTable(timePeriods, psis, distances, timePeriodMillis, psiMin, psiStep, distanceUnit,
+				ByteBuffer.wrap(new byte[timePeriods*psis*distances]));
+	}
+
+	/**
+	 * Reads the header of a binary policy and returns a table for its cells. Flat cells are
+	 * viewed in place so a mapped buffer stays off the heap.
+	 * @param buf Buffer positioned at the start of the header
+	 * @return The table
+	 * @throws IOException if the header is bad or the buffer is too short
+	 */
+	public static PolicyTable fromBuffer(ByteBuffer buf) throws IOException{
+		if(buf.remaining()<HEADER_BYTES_V1 || buf.getInt(buf.position())!=MAGIC){
+			throw new IOException("Not a binary policy");
+		}
+		ByteBuffer in=buf.duplicate();
+		in.getInt();
+		int version=in.getInt();
+		int encoding=ENCODING_FLAT;
+		if(version==VERSION){
+			if(buf.remaining()<HEADER_BYTES)throw new IOException("Binary policy header is truncated");
+			encoding=in.getInt();
+		}
+		else if(version!=1){
+			throw new IOException("Unsupported binary policy version "+version);
+		}
+		int t=in.getInt();
+		int p=in.getInt();
+		int d=in.getInt();
+		int periodMillis=DEFAULT_TIME_PERIOD_MILLIS;
+		double psiMin=DEFAULT_PSI_MIN;
+		double psiStep=DEFAULT_PSI_STEP;
+		double distUnit=DEFAULT_DISTANCE_UNIT;
+		if(version==VERSION){
+			periodMillis=in.getInt();
+			psiMin=in.getDouble();
+			psiStep=in.getDouble();
+			distUnit=in.getDouble();
+		}
+		if(t<=0 || p<=0 || d<=0)throw new IOException("Bad policy dimensions "+t+"x"+p+"x"+d);
+		if(periodMillis<=0 || psiStep<=0 || distUnit<=0)throw new IOException("Bad policy grid");
+
+		switch(encoding){
+			case(ENCODING_FLAT):
+				long size=(long)t*p*d;
+				if(in.remaining()<size)throw new IOException("Binary policy is truncated");
+				in.limit(in.position()+(int)size);
+				return new FlatPolicyTable(t, p, d, periodMillis, psiMin, psiStep, distUnit, in.slice());
+			case(ENCODING_RUN_LENGTH):
+				return RunLengthPolicyTable.readCells(in, t, p, d, periodMillis, psiMin, psiStep, distUnit);
+			default:
+				throw new IOException("Unknown policy encoding "+encoding);
+		}
+	}
+
+	/**
+	 * Memory maps a binary policy file. The mapping stays valid after the channel is closed.
+	 */
+	public static PolicyTable map(FileChannel channel) throws IOException{
+		return fromBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+	}
+
+	/**
+	 * Checks for the binary policy magic number at the start of the given bytes
+	 */
+	public static boolean isBinary(byte[] head, int length){
+		if(length<4)return false;
+		int magic=((head[0]&0xFF)<<24)|((head[1]&0xFF)<<16)|((head[2]&0xFF)<<8)|(head[3]&0xFF);
+		return magic==MAGIC;
+	}
+
+	/**
+	 * Writes this table out in the binary policy format
+	 * @param os Stream to write to, left open
+	 */
+	public void write(OutputStream os) throws IOException{
+		DataOutputStream out=new DataOutputStream(os);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(encoding());
+		out.writeInt(numTimePeriods);
+		out.writeInt(numPsis);
+		out.writeInt(numDistances);
+		out.writeInt(timePeriodMillis);
+		out.writeDouble(psiMin);
+		out.writeDouble(psiStep);
+		out.writeDouble(distanceUnit);
+		writeCells(out);
+		out.flush();
+	}
+}
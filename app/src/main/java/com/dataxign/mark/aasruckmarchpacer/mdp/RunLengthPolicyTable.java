@@ -0,0 +1,181 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compressed policy. Each (time period, PSI) row along distance is stored as runs of the
+ * same action, and identical rows are stored once in a row dictionary. A lookup is a
+ * binary search over the runs of one row, O(log runs).
+ *
+ * Cell layout (big-endian): int unique rows, int[time periods*psis] row ids,
+ * int[unique rows+1] run offsets, int total runs, int[total runs] run start distances,
+ * byte[total runs] run actions
+ */
+public class RunLengthPolicyTable extends PolicyTable {
+
+	private final int[] rowIds;     // [Time period*PSI] -> unique row
+	private final int[] runOffsets; // unique row -> first run, plus the end
+	private final int[] runStarts;  // first distance index of each run
+	private final byte[] runActions;
+
+	private RunLengthPolicyTable(PolicyTable shape, int[] rowIds, int[] runOffsets, int[] runStarts, byte[] runActions){
+		this(shape.numTimePeriods, shape.numPsis, shape.numDistances, shape.timePeriodMillis, shape.psiMin, shape.psiStep, shape.distanceUnit,
+				rowIds, runOffsets, runStarts, runActions);
+	}
+
+	private RunLengthPolicyTable(int timePeriods, int psis, int distances, int timePeriodMillis, double psiMin, double psiStep, double distanceUnit,
+								 int[] rowIds, int[] runOffsets, int[] runStarts, byte[] runActions){
+		super(timePeriods, psis, distances, timePeriodMillis, psiMin, psiStep, distanceUnit);
+		this.rowIds=rowIds;
+		this.runOffsets=runOffsets;
+		this.runStarts=runStarts;
+		this.runActions=runActions;
+	}
+
+	/**
+	 * Builds the compressed form of any table, keeping its grid
+	 */
+	public static RunLengthPolicyTable compress(PolicyTable src){
+		int rows=src.numTimePeriods*src.numPsis;
+		int[] rowIds=new int[rows];
+		int[] runOffsets=new int[rows+1];
+		int[] starts=new int[Math.max(16, rows*4)];
+		byte[] actions=new byte[starts.length];
+		HashMap<Integer, Integer> byHash=new HashMap<Integer, Integer>();
+		int unique=0;
+		int total=0;
+
+		for(int tp=0;tp<src.numTimePeriods;tp++){
+			for(int npsi=0;npsi<src.numPsis;npsi++){
+				// Append this row's runs after the last unique row
+				int first=total;
+				int last=-1;
+				for(int dist=0;dist<src.numDistances;dist++){
+					int action=src.get(tp, npsi, dist);
+					if(action!=last){
+						if(total==starts.length){
+							starts=Arrays.copyOf(starts, total*2);
+							actions=Arrays.copyOf(actions, total*2);
+						}
+						starts[total]=dist;
+						actions[total]=(byte)action;
+						total++;
+						last=action;
+					}
+				}
+				int hash=rowHash(starts, actions, first, total);
+				Integer match=byHash.get(hash);
+				if(match!=null && sameRuns(starts, actions, runOffsets[match], runOffsets[match+1], first, total)){
+					total=first; // Already stored, drop the copy
+					rowIds[tp*src.numPsis+npsi]=match;
+				}
+				else{
+					if(match==null)byHash.put(hash, unique);
+					runOffsets[unique+1]=total;
+					rowIds[tp*src.numPsis+npsi]=unique;
+					unique++;
+				}
+			}
+		}
+		return new RunLengthPolicyTable(src, rowIds, Arrays.copyOf(runOffsets, unique+1),
+				Arrays.copyOf(starts, total), Arrays.copyOf(actions, total));
+	}
+
+	/**
+	 * The compressed form of a table when that is smaller, otherwise the table itself
+	 */
+	public static PolicyTable compact(FlatPolicyTable flat){
+		RunLengthPolicyTable compressed=compress(flat);
+		return compressed.byteSize()<flat.byteSize() ? compressed : flat;
+	}
+
+	private static int rowHash(int[] starts, byte[] actions, int from, int to){
+		int h=1;
+		for(int i=from;i<to;i++)h=31*(31*h+starts[i])+actions[i];
+		return h;
+	}
+
+	private static boolean sameRuns(int[] starts, byte[] actions, int aFrom, int aTo, int bFrom, int bTo){
+		if(aTo-aFrom!=bTo-bFrom)return false;
+		for(int i=0;i<aTo-aFrom;i++){
+			if(starts[aFrom+i]!=starts[bFrom+i] || actions[aFrom+i]!=actions[bFrom+i])return false;
+		}
+		return true;
+	}
+
+	public int get(int timeIndex, int psiIndex, int distIndex){
+		int row=rowIds[timeIndex*numPsis+psiIndex];
+		int lo=runOffsets[row];
+		int hi=runOffsets[row+1]-1;
+		// Last run starting at or before distIndex
+		while(lo<hi){
+			int mid=(lo+hi+1)>>>1;
+			if(runStarts[mid]<=distIndex)lo=mid;
+			else hi=mid-1;
+		}
+		return runActions[lo]&0xFF;
+	}
+
+	/**
+	 * Number of runs stored across all unique rows
+	 */
+	public int runCount(){
+		return runStarts.length;
+	}
+
+	public long byteSize(){
+		return 4L*(rowIds.length+runOffsets.length)+5L*runStarts.length;
+	}
+
+	protected int encoding(){
+		return ENCODING_RUN_LENGTH;
+	}
+
+	protected void writeCells(DataOutputStream out) throws IOException{
+		out.writeInt(runOffsets.length-1);
+		for(int i=0;i<rowIds.length;i++)out.writeInt(rowIds[i]);
+		for(int i=0;i<runOffsets.length;i++)out.writeInt(runOffsets[i]);
+		out.writeInt(runStarts.length);
+		for(int i=0;i<runStarts.length;i++)out.writeInt(runStarts[i]);
+		out.write(runActions);
+	}
+
+	static RunLengthPolicyTable readCells(ByteBuffer in, int timePeriods, int psis, int distances, int timePeriodMillis,
+										  double psiMin, double psiStep, double distanceUnit) throws IOException{
+		try{
+			int unique=in.getInt();
+			if(unique<=0 || unique>timePeriods*psis)throw new IOException("Bad unique row count in policy");
+			int[] rowIds=new int[timePeriods*psis];
+			int[] runOffsets=new int[unique+1];
+			in.asIntBuffer().get(rowIds);
+			in.position(in.position()+rowIds.length*4);
+			in.asIntBuffer().get(runOffsets);
+			in.position(in.position()+runOffsets.length*4);
+			int total=in.getInt();
+			if(total<unique || (long)total*5>in.remaining())throw new IOException("Bad run count in policy");
+			int[] runStarts=new int[total];
+			byte[] runActions=new byte[total];
+			in.asIntBuffer().get(runStarts);
+			in.position(in.position()+total*4);
+			in.get(runActions);
+
+			// A bad index would only show up as a crash mid march, so check them all now
+			for(int i=0;i<rowIds.length;i++){
+				if(rowIds[i]<0 || rowIds[i]>=unique)throw new IOException("Bad row id in policy");
+			}
+			for(int r=0;r<unique;r++){
+				if(runOffsets[r]<0 || runOffsets[r]>=runOffsets[r+1] || runOffsets[r+1]>total)throw new IOException("Bad run offsets in policy");
+				if(runStarts[runOffsets[r]]!=0)throw new IOException("Policy row does not start at distance 0");
+			}
+			return new RunLengthPolicyTable(timePeriods, psis, distances, timePeriodMillis, psiMin, psiStep, distanceUnit,
+					rowIds, runOffsets, runStarts, runActions);
+		} catch(RuntimeException e){
+			// BufferUnderflowException, NegativeArraySizeException and friends from a truncated file
+			throw new IOException("Run length policy is truncated or corrupt");
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Append only log of a session, written through a memory mapped file so the record survives the
+ * app being killed. Appending is a copy into the mapping, the OS writes the pages out.
+ *
+ * Records are RECORD bytes: time (long), type (int), an int and four doubles. Record 0 is the
+ * header. Every COMMIT_INTERVAL records, and on commit, a commit record holds the count and CRC32
+ * of the records since the last one. Opening an existing journal scans it and keeps everything up
+ * to the last commit that checks out. Opened to append, anything after that is cleared and
+ * overwritten. Opened with openForReading, for replay or export, the file is left as it is.
+ */
+public class SessionJournal {
+
+	public static final int RECORD=48;
+
+	// Record types, what a to d hold
+	public static final int SAMPLE=1;   // Raw HR, raw mph, Kalman TC, Kalman variance
+	public static final int FIX=2;      // Latitude, longitude, mph, route miles
+	public static final int MINUTE=3;   // Smoothed HR, smoothed TC, smoothed mph, metabolic rate
+	public static final int PSI=4;     // Observed PSI, estimated TC, estimated PSI, minute distance
+	public static final int GUIDANCE=5; // Guidance mph, miles completed, estimated PSI, session millis
+	private static final int COMMIT=127;
+
+	private static final int MAGIC=0x524D4A31; // RMJ1
+	private static final int VERSION=1;
+	private static final int COMMIT_INTERVAL=64;
+	private static final int REGION_RECORDS=4096; // Records per mapping
+	private static final int REGION_BYTES=REGION_RECORDS*RECORD;
+
+	/**
+	 * Visits committed records in order, see forEach
+	 */
+	public interface Visitor {
+		void record(long time, int type, double a, double b, double c, double d);
+	}
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final boolean readOnly;
+	private MappedByteBuffer region;
+	private int regionIndex=-1;
+
+	private final byte[] scratch=new byte[RECORD];
+	private final ByteBuffer rec=ByteBuffer.wrap(scratch);
+	private final CRC32 crc=new CRC32();
+	private long next;      // Index of the next record
+	private long committedEnd; // Index after the last commit
+	private int pending=0;  // Records since the last commit
+	private long committed=0;
+	private long lastTime=0; // Of the last record appended
+
+	/**
+	 * Opens a journal to append to, creating it if it doesn't exist and recovering it if it does
+	 * @param path The journal file
+	 * @param startTime Session start, milliseconds, written to a new journal's header
+	 */
+	public SessionJournal(File path, long startTime) throws IOException{
+		this(path, startTime, false);
+	}
+
+	/**
+	 * Opens a journal without changing it, appending throws
+	 * @param path The journal file
+	 */
+	public static SessionJournal openForReading(File path) throws IOException{
+		return new SessionJournal(path, 0, true);
+	}
+
+	private SessionJournal(File path, long startTime, boolean readOnly) throws IOException{
+		this.readOnly=readOnly;
+		file=new RandomAccessFile(path, readOnly ? "r" : "rw");
+		channel=file.getChannel();
+		try{
+			if(readOnly && channel.size()<RECORD){
+				throw new IOException("Empty session journal "+path.getName());
+			}
+			if(channel.size()<RECORD){
+				rec.clear();
+				rec.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, RECORD).putInt(12, 0).putLong(16, startTime);
+				for(int i=24;i<RECORD;i+=8)rec.putLong(i, 0);
+				next=0;
+				write();
+				committedEnd=next;
+			} else {
+				int offset=map(0);
+				if(region.getInt(offset)!=MAGIC || region.getInt(offset+8)!=RECORD){
+					throw new IOException("Not a session journal "+path.getName());
+				}
+				recover();
+			}
+		} catch(IOException e){
+			channel.close();
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Session start from the header, milliseconds
+	 */
+	public long startTime() throws IOException{
+		return region(0).getLong(16);
+	}
+
+	/**
+	 * Records committed, including any recovered when the journal was opened
+	 */
+	public long committedRecords(){
+		return committed;
+	}
+
+	/**
+	 * Appends a record, committing every COMMIT_INTERVAL records
+	 * @param type One of the record types
+	 */
+	public void append(long time, int type, double a, double b, double c, double d) throws IOException{
+		if(readOnly)throw new IOException("Session journal is open for reading");
+		lastTime=time;
+		rec.putLong(0, time).putInt(8, type).putInt(12, 0);
+		rec.putDouble(16, a).putDouble(24, b).putDouble(32, c).putDouble(40, d);
+		write();
+		crc.update(scratch, 0, RECORD);
+		if(++pending>=COMMIT_INTERVAL)commit();
+	}
+
+	/**
+	 * Marks everything appended so far as complete
+	 */
+	public void commit() throws IOException{
+		if(pending==0)return;
+		rec.putLong(0, lastTime).putInt(8, COMMIT).putInt(12, pending);
+		rec.putLong(16, crc.getValue()).putLong(24, 0).putLong(32, 0).putLong(40, 0);
+		write();
+		committed+=pending;
+		committedEnd=next;
+		pending=0;
+		crc.reset();
+	}
+
+	/**
+	 * Commits and waits for the file to reach storage, which takes milliseconds. Dying without
+	 * this only loses data if the device itself goes down.
+	 */
+	public void sync() throws IOException{
+		commit();
+		channel.force(false);
+	}
+
+	public void close() throws IOException{
+		try{
+			if(!readOnly)sync();
+		} finally {
+			region=null;
+			channel.close();
+			file.close();
+		}
+	}
+
+	/**
+	 * Visits every committed record, oldest first
+	 */
+	public void forEach(Visitor visitor) throws IOException{
+		for(long i=1;i<committedEnd;i++){
+			int offset=map(i);
+			int type=region.getInt(offset+8);
+			if(type==COMMIT)continue;
+			visitor.record(region.getLong(offset), type, region.getDouble(offset+16), region.getDouble(offset+24),
+					region.getDouble(offset+32), region.getDouble(offset+40));
+		}
+	}
+
+	// Finds the last good commit and clears everything after it
+	private void recover() throws IOException{
+		long records=channel.size()/RECORD;
+		long i=1;
+		long end=1;
+		int count=0;
+		crc.reset();
+		while(i<records){
+			int offset=map(i);
+			region.position(offset);
+			region.get(scratch);
+			int type=rec.getInt(8);
+			if(type==0)break; // Never written
+			if(type==COMMIT){
+				if(rec.getInt(12)!=count || rec.getLong(16)!=crc.getValue())break;
+				committed+=count;
+				count=0;
+				crc.reset();
+				end=i+1;
+			} else {
+				crc.update(scratch, 0, RECORD);
+				count++;
+			}
+			i++;
+		}
+		next=end;
+		committedEnd=end;
+		crc.reset();
+		Log.d("SessionJournal", "Recovered "+committed+" records");
+		if(readOnly){
+			if(i>end)Log.w("SessionJournal", "Ignoring "+(i-end)+" uncommitted records");
+			return;
+		}
+		if(i>end)Log.w("SessionJournal", "Dropping "+(i-end)+" uncommitted records");
+
+		// Stale records past the end could be picked up by a later scan once new ones are committed
+		for(long k=end;k<records;k++){
+			int offset=map(k);
+			for(int b=0;b<RECORD;b+=8)region.putLong(offset+b, 0);
+		}
+	}
+
+	private void write() throws IOException{
+		int offset=map(next);
+		region.position(offset);
+		region.put(scratch);
+		next++;
+	}
+
+	// Maps the region holding a record, returns the record's offset in it
+	private int map(long index) throws IOException{
+		region((int)(index/REGION_RECORDS));
+		return (int)(index%REGION_RECORDS)*RECORD;
+	}
+
+	private MappedByteBuffer region(int r) throws IOException{
+		if(r!=regionIndex){
+			long start=(long)r*REGION_BYTES;
+			if(readOnly){
+				// A read only mapping can't grow the file, so the last region stops at its end
+				region=channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_BYTES, channel.size()-start));
+			} else {
+				region=channel.map(FileChannel.MapMode.READ_WRITE, start, REGION_BYTES);
+			}
+			regionIndex=r;
+		}
+		return region;
+	}
+}
@@ -0,0 +1,186 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import android.util.Log;
+
+import com.dataxign.mark.aasruckmarchpacer.functions.ManualClock;
+import com.dataxign.mark.aasruckmarchpacer.geo.DataSmoother;
+import com.dataxign.mark.aasruckmarchpacer.geo.DegreesToUTM;
+import com.dataxign.mark.aasruckmarchpacer.geo.LocalProjection;
+import com.dataxign.mark.aasruckmarchpacer.geo.MapMatcher;
+import com.dataxign.mark.aasruckmarchpacer.geo.Route;
+import com.dataxign.mark.aasruckmarchpacer.geo.Segment;
+import com.dataxign.mark.aasruckmarchpacer.geo.SnapResult;
+
+/**
+ * Runs a recorded session back through the pipeline the app runs on the march: map matching,
+ * speed and heading smoothing, the Kalman core temperature, the minute values and guidance.
+ * Time comes from a ManualClock set to each sample's recorded time, so a replay runs as fast
+ * as the samples can be read and gives the same results every time. Compare digest() or the
+ * series in dm to check a change against hours of field data.
+ *
+ * Sessions come from a SessionJournal or a CSV with a header row and columns time (ms), lat,
+ * lon, mph and hr, in any order. A row with lat and lon is a GPS fix, then its mph and hr go to
+ * the data manager like a tick of the app's loop.
+ *
+ * Fixes are converted with the replay's own local projection for the route, the one the app
+ * installs when it loads the route, and never through the projection DegreesToUTM has installed,
+ * so a replay doesn't depend on which route the process loaded last.
+ */
+public class SessionReplay {
+
+	public final ManualClock clock=new ManualClock(0);
+	public final DataManager dm;
+	public final DataSmoother smoother=new DataSmoother(clock);
+	public final SnapResult snap=new SnapResult();
+	private final Route route;
+	private final MapMatcher matcher;
+	private final LocalProjection projection; // Null converts every fix the full way
+
+	private static final double LOCAL_PROJECTION_MARGIN_METRES = 2000; // As MainActivity
+	private final double[] utm=new double[2];
+
+	private boolean started=false;
+	private long lastFix=-1;
+	private int fixes=0;
+	private int samples=0;
+
+	/**
+	 * @param policy The policy to replay against
+	 * @param route The route marched, or null to replay without one
+	 */
+	public SessionReplay(Policy policy, Route route){
+		dm=new DataManager(policy, clock);
+		this.route=route;
+		matcher=route!=null ? new MapMatcher(route) : null;
+		projection=route!=null ? route.localProjection(LOCAL_PROJECTION_MARGIN_METRES) : null;
+		dm.setRoute(route);
+	}
+
+	/**
+	 * Replays the committed records of a journal, open it with SessionJournal.openForReading
+	 */
+	public void replay(SessionJournal journal) throws IOException{
+		start(journal.startTime());
+		journal.forEach(new SessionJournal.Visitor() {
+			public void record(long time, int type, double a, double b, double c, double d) {
+				if(type==SessionJournal.FIX)fix(time, a, b, c);
+				else if(type==SessionJournal.SAMPLE)sample(time, a, b);
+			}
+		});
+		finish();
+	}
+
+	/**
+	 * Replays a CSV session
+	 * @param in CSV source, left open
+	 */
+	public void replayCsv(InputStream in) throws IOException{
+		BufferedReader br=new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String line=br.readLine();
+		if(line==null)throw new IOException("Empty session file");
+		String[] header=line.split(",", -1);
+		int time=-1, lat=-1, lon=-1, mph=-1, hr=-1;
+		for(int i=0;i<header.length;i++){
+			String h=header[i].trim().toLowerCase();
+			if(h.equals("time"))time=i;
+			else if(h.equals("lat"))lat=i;
+			else if(h.equals("lon"))lon=i;
+			else if(h.equals("mph"))mph=i;
+			else if(h.equals("hr"))hr=i;
+		}
+		if(time<0 || mph<0 || hr<0)throw new IOException("Session file needs time, mph and hr columns");
+
+		int row=1;
+		try{
+			while((line=br.readLine())!=null){
+				row++;
+				if(line.trim().length()==0)continue;
+				String[] f=line.split(",", -1);
+				long t=Long.parseLong(f[time].trim());
+				double speed=Double.parseDouble(f[mph].trim());
+				if(!started)start(t);
+				if(lat>=0 && lon>=0 && f[lat].trim().length()>0 && f[lon].trim().length()>0){
+					fix(t, Double.parseDouble(f[lat].trim()), Double.parseDouble(f[lon].trim()), speed);
+				}
+				sample(t, Double.parseDouble(f[hr].trim()), speed);
+			}
+		} catch(NumberFormatException e){
+			throw new IOException("Bad number on row "+row+". "+e.getMessage());
+		} catch(ArrayIndexOutOfBoundsException e){
+			throw new IOException("Missing column on row "+row);
+		}
+		finish();
+	}
+
+	private void start(long time){
+		clock.set(time);
+		dm.startSession();
+		if(matcher!=null)matcher.reset();
+		started=true;
+	}
+
+	private void finish(){
+		Log.d("SessionReplay", "Replayed "+fixes+" fixes and "+samples+" samples, "+dm.distanceCompleted+" miles");
+	}
+
+	/**
+	 * A GPS fix, handled as MainActivity handles one
+	 */
+	private void fix(long time, double lat, double lon, double mph){
+		clock.set(time);
+		fixes++;
+		smoother.addSpeed(mph, time);
+		if(matcher==null)return;
+
+		double easting, northing;
+		if(projection!=null && projection.contains(lat, lon)){
+			easting=projection.easting(lat, lon);
+			northing=projection.northing(lat, lon);
+		} else {
+			// In the route's zone, so the fix lands in the route's coordinates
+			DegreesToUTM.latLon2UTM(lat, lon, projection!=null ? projection.meridian : DegreesToUTM.centralMeridian(lon), utm);
+			easting=utm[0];
+			northing=utm[1];
+		}
+		double dt=lastFix<0 ? 0 : (time-lastFix)/1000.0;
+		lastFix=time;
+		matcher.update(easting, northing, dt, snap);
+		if(snap.onRoute()){
+			if(matcher.lagged.onRoute())dm.setRouteProgress(Segment.convertM2Miles(matcher.lagged.progress));
+			dm.setRouteSegment(snap.segment);
+		} else {
+			dm.setRouteSegment(-1);
+		}
+	}
+
+	/**
+	 * A heart rate and speed sample, a tick of MainActivity's loop
+	 */
+	private void sample(long time, double hr, double mph){
+		clock.set(time);
+		samples++;
+		dm.update(hr, mph);
+	}
+
+	/**
+	 * A hash of every value in every series of the data manager, equal for replays that came
+	 * out the same
+	 */
+	public long digest(){
+		long h=0x9E3779B97F4A7C15L;
+		for(int type=DataManager.RAWHR;type<=DataManager.MET;type++){
+			TimeSeries ts=dm.getSeries(type);
+			for(int i=0;i<ts.size();i++){
+				h=(h^ts.time(i))*0x100000001B3L;
+				h=(h^Double.doubleToLongBits(ts.value(i)))*0x100000001B3L;
+			}
+			h=Long.rotateLeft(h, 17)^type;
+		}
+		return h;
+	}
+}
@@ -0,0 +1,152 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+/**
+ * Median of the last window values, kept up to date as values arrive. The lower half of the
+ * window is a max heap and the upper half a min heap, and each value knows where it is in its
+ * heap, so the oldest value can be taken out when a new one pushes it out of the window.
+ * Adding is O(log window), the median is O(1) and nothing is allocated after construction.
+ */
+public class SlidingMedian {
+
+	private final double[] values; // Ring of the window, oldest at head
+	private final boolean[] inLower; // Which heap each slot is in
+	private final int[] heapIndex;   // Where each slot is in its heap
+	private final Heap lower=new Heap(true);
+	private final Heap upper=new Heap(false);
+	private int head=0;
+	private int count=0;
+
+	/**
+	 * @param window Most values the median is taken over, at least 1
+	 */
+	public SlidingMedian(int window){
+		window=Math.max(1, window);
+		values=new double[window];
+		inLower=new boolean[window];
+		heapIndex=new int[window];
+		lower.slots=new int[window];
+		upper.slots=new int[window];
+	}
+
+	public int size(){
+		return count;
+	}
+
+	public int window(){
+		return values.length;
+	}
+
+	public void clear(){
+		head=0;
+		count=0;
+		lower.size=0;
+		upper.size=0;
+	}
+
+	/**
+	 * Adds a value, dropping the oldest if the window is full
+	 */
+	public void add(double v){
+		if(count==values.length){
+			remove(head);
+			head=(head+1)%values.length;
+			count--;
+		}
+		int slot=(head+count)%values.length;
+		values[slot]=v;
+		count++;
+		if(lower.size==0 || v<=values[lower.slots[0]])lower.push(slot);
+		else upper.push(slot);
+		balance();
+	}
+
+	/**
+	 * The median of the window, the mean of the middle two if it holds an even number
+	 * @return The median, or ifEmpty if the window is empty
+	 */
+	public double median(double ifEmpty){
+		if(count==0)return ifEmpty;
+		if(lower.size>upper.size)return values[lower.slots[0]];
+		return (values[lower.slots[0]]+values[upper.slots[0]])/2;
+	}
+
+	private void remove(int slot){
+		if(inLower[slot])lower.removeAt(heapIndex[slot]);
+		else upper.removeAt(heapIndex[slot]);
+		balance();
+	}
+
+	// Keeps lower the same size as upper or one bigger
+	private void balance(){
+		if(lower.size>upper.size+1)upper.push(lower.pop());
+		else if(upper.size>lower.size)lower.push(upper.pop());
+	}
+
+	private final class Heap {
+		private final boolean max;
+		private int[] slots;
+		private int size=0;
+
+		private Heap(boolean max){
+			this.max=max;
+		}
+
+		// True if slot a belongs above slot b
+		private boolean above(int a, int b){
+			return max ? values[a]>values[b] : values[a]<values[b];
+		}
+
+		private void push(int slot){
+			inLower[slot]=max;
+			set(size++, slot);
+			up(size-1);
+		}
+
+		private int pop(){
+			int top=slots[0];
+			removeAt(0);
+			return top;
+		}
+
+		private void removeAt(int i){
+			size--;
+			if(i==size)return;
+			// The last slot fills the gap and moves whichever way it belongs
+			int moved=slots[size];
+			set(i, moved);
+			up(i);
+			down(heapIndex[moved]);
+		}
+
+		private void up(int i){
+			while(i>0){
+				int parent=(i-1)/2;
+				if(!above(slots[i], slots[parent]))break;
+				swap(i, parent);
+				i=parent;
+			}
+		}
+
+		private void down(int i){
+			while(true){
+				int child=2*i+1;
+				if(child>=size)break;
+				if(child+1<size && above(slots[child+1], slots[child]))child++;
+				if(!above(slots[child], slots[i]))break;
+				swap(i, child);
+				i=child;
+			}
+		}
+
+		private void swap(int i, int j){
+			int s=slots[i];
+			set(i, slots[j]);
+			set(j, s);
+		}
+
+		private void set(int i, int slot){
+			slots[i]=slot;
+			heapIndex[slot]=i;
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.util.Log;
+
+import com.dataxign.mark.aasruckmarchpacer.functions.Clock;
+import com.dataxign.mark.aasruckmarchpacer.functions.USARIEM;
+
+/**
+ * Team mode: every soldier's sensor in range feeds its own pipeline, the same steps DataManager
+ * runs for one. Heart rates go through a Hampel filter into a minute median, each minute steps
+ * the Kalman core temperature and PSI, and guidance is looked up every two minutes at the
+ * squad's distance.
+ *
+ * Soldiers are found by roster number in an open addressing table. Lookups don't lock. Adding
+ * a soldier copies the table and publishes the copy, which only happens as the squad comes
+ * into range. A sample costs the same however big the squad is.
+ *
+ * A soldier not heard from for STALE_MILLIS, out of range or with a flat battery, drops out of
+ * ranked() and starts their pipeline afresh if they're heard from again.
+ */
+public class SquadMonitor {
+
+	private final static int SMOOTH_INTERVAL_MILLIS = 60000; // 1 min
+	private final static int GUIDANCE_INTERVAL_MILLIS = 120000; // 2 min
+	private final static int MINUTE_SAMPLES = 128; // Most samples in a minute's median per soldier
+	private final static int INITIAL_SLOTS = 128;  // Room for 64 soldiers before the table grows
+	private final static int STALE_MILLIS = 300000; // 5 min
+
+	/**
+	 * One soldier's latest values, as of a call to status or ranked
+	 */
+	public static final class Status {
+		public final int roster;
+		public final double HR;       // Last accepted heart rate
+		public final double TC;       // Kalman core temperature estimate, -10 before the first minute
+		public final double PSI;      // -10 before the first minute
+		public final double ECT;      // Core temperature the sensor reports
+		public final double guidance; // Policy speed, mph
+		public final long lastSeen;   // Clock time of the last sample
+
+		private Status(Subject s){
+			roster=s.roster;
+			HR=s.lastHR;
+			TC=s.TC;
+			PSI=s.PSI;
+			ECT=s.ECT;
+			guidance=s.guidance;
+			lastSeen=s.lastSeen;
+		}
+	}
+
+	private static final Comparator<Status> BY_STRAIN=new Comparator<Status>() {
+		public int compare(Status a, Status b){
+			if(a.PSI!=b.PSI)return a.PSI>b.PSI ? -1 : 1;
+			return Double.compare(b.HR, a.HR);
+		}
+	};
+
+	private volatile Policy policy; // Null for no guidance yet
+	private final Clock clock;
+	private volatile Table table=new Table(INITIAL_SLOTS);
+	private volatile double distanceCompleted=0;
+	private volatile long sessionStartTime;
+
+	public SquadMonitor(Clock clock){
+		this.clock=clock;
+		sessionStartTime=clock.millis();
+	}
+
+	/**
+	 * Sets the policy guidance is looked up in, until then guidance is 0
+	 */
+	public void setPolicy(Policy policy){
+		this.policy=policy;
+	}
+
+	/**
+	 * Starts the session clock the guidance is looked up against
+	 */
+	public void startSession(){
+		sessionStartTime=clock.millis();
+	}
+
+	/**
+	 * The squad's distance along the route, from the leader's device
+	 */
+	public void setDistance(double miles){
+		distanceCompleted=miles;
+	}
+
+	/**
+	 * Feeds a sensor reading, from any thread
+	 * @param roster The sensor's roster number
+	 * @param HR Heart rate, bpm
+	 * @param ECT Core temperature the sensor reports, C
+	 */
+	public void onSample(int roster, double HR, double ECT){
+		Subject s=find(table, roster);
+		if(s==null)s=add(roster);
+		long time=clock.millis();
+		synchronized(s){
+			s.sample(time, HR, ECT);
+		}
+	}
+
+	/**
+	 * Soldiers heard from so far, including any gone stale
+	 */
+	public int size(){
+		return table.size;
+	}
+
+	/**
+	 * @return A soldier's latest values, or null if they haven't been heard from
+	 */
+	public Status status(int roster){
+		Subject s=find(table, roster);
+		if(s==null)return null;
+		synchronized(s){
+			return new Status(s);
+		}
+	}
+
+	/**
+	 * The latest values of every soldier heard from in the last STALE_MILLIS, highest PSI first,
+	 * then highest heart rate
+	 */
+	public Status[] ranked(){
+		Table t=table;
+		long since=clock.millis()-STALE_MILLIS;
+		Status[] out=new Status[t.size];
+		int n=0;
+		for(int i=0;i<t.subjects.length && n<out.length;i++){
+			Subject s=t.subjects[i];
+			if(s==null)continue;
+			synchronized(s){
+				if(s.lastSeen>=since)out[n++]=new Status(s);
+			}
+		}
+		if(n<out.length)out=Arrays.copyOf(out, n);
+		Arrays.sort(out, BY_STRAIN);
+		return out;
+	}
+
+	private static Subject find(Table t, int roster){
+		int mask=t.rosters.length-1;
+		for(int i=mix(roster)&mask;t.subjects[i]!=null;i=(i+1)&mask){
+			if(t.rosters[i]==roster)return t.subjects[i];
+		}
+		return null;
+	}
+
+	// Copies the table with the new soldier in it, so readers never see it half written
+	private synchronized Subject add(int roster){
+		Table t=table;
+		Subject s=find(t, roster);
+		if(s!=null)return s;
+
+		s=new Subject(roster);
+		int slots=t.rosters.length;
+		if((t.size+1)*2>slots)slots*=2;
+		Table copy=new Table(slots);
+		for(int i=0;i<t.subjects.length;i++){
+			if(t.subjects[i]!=null)copy.put(t.rosters[i], t.subjects[i]);
+		}
+		copy.put(roster, s);
+		table=copy;
+		Log.d("SquadMonitor", "Monitoring roster "+roster+", "+copy.size+" in the squad");
+		return s;
+	}
+
+	private static int mix(int roster){
+		int h=roster*0x9E3779B9;
+		return h^(h>>>16);
+	}
+
+	private static final class Table {
+		final int[] rosters;
+		final Subject[] subjects;
+		int size=0;
+
+		Table(int slots){
+			rosters=new int[slots];
+			subjects=new Subject[slots];
+		}
+
+		void put(int roster, Subject s){
+			int mask=rosters.length-1;
+			int i=mix(roster)&mask;
+			while(subjects[i]!=null)i=(i+1)&mask;
+			rosters[i]=roster;
+			subjects[i]=s;
+			size++;
+		}
+	}
+
+	/**
+	 * One soldier's pipeline, guarded by its own lock
+	 */
+	private final class Subject {
+		final int roster;
+		final HampelFilter hrFilter=new HampelFilter(15, 3);
+		final SlidingMedian minuteHR=new SlidingMedian(MINUTE_SAMPLES);
+		KalmanState ks=new KalmanState();
+		double lastHR=-10;
+		double TC=-10;
+		double PSI=-10;
+		double ECT=-10;
+		double guidance=0;
+		long lastSeen;
+		long lastDataSmooth;
+		long lastGuidanceCompute;
+
+		Subject(int roster){
+			this.roster=roster;
+			long now=clock.millis();
+			lastDataSmooth=now;
+			lastGuidanceCompute=now-GUIDANCE_INTERVAL_MILLIS; // Guidance on the first minute
+		}
+
+		void sample(long time, double HR, double ECT){
+			if(lastSeen!=0 && time-lastSeen>STALE_MILLIS)restart(time);
+			lastSeen=time;
+			this.ECT=ECT;
+			if (!(HR>220 || HR<40) && hrFilter.accept(HR)) { lastHR=HR; minuteHR.add(HR); }
+
+			if(time-lastDataSmooth >= SMOOTH_INTERVAL_MILLIS){
+				double median=minuteHR.median(-10);
+				if(median!=-10){
+					ks=USARIEM.estimateTcore(median, ks);
+					TC=ks.currentTC;
+					PSI=USARIEM.calcPSI(TC, 37.1, median, 71);
+				}
+				minuteHR.clear();
+				lastDataSmooth=time;
+			}
+			Policy p=policy;
+			if(p!=null && PSI!=-10 && time-lastGuidanceCompute >= GUIDANCE_INTERVAL_MILLIS){
+				guidance=p.getPolicy(time-sessionStartTime, distanceCompleted, PSI);
+				lastGuidanceCompute=time;
+			}
+		}
+
+		// Back after going stale, the old minute and core temperature no longer apply
+		void restart(long time){
+			Log.d("SquadMonitor", "Roster "+roster+" back after "+(time-lastSeen)/1000+"s, restarting");
+			hrFilter.clear();
+			minuteHR.clear();
+			ks=new KalmanState();
+			lastHR=-10;
+			TC=-10;
+			PSI=-10;
+			guidance=0;
+			lastDataSmooth=time;
+			lastGuidanceCompute=time-GUIDANCE_INTERVAL_MILLIS;
+		}
+	}
+}
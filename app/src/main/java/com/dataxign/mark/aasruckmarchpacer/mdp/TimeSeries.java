@@ -0,0 +1,136 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import java.util.Arrays;
+
+/**
+ * An append only series of timed samples, stored unboxed in fixed size chunks of times and values.
+ * Appending never copies what is already stored, the last value is O(1) and samples can be looked
+ * up by time with a binary search, as times only go forward.
+ */
+public class TimeSeries {
+
+	private static final int CHUNK_BITS=10;
+	private static final int CHUNK=1<<CHUNK_BITS; // Samples per chunk
+	private static final int MASK=CHUNK-1;
+
+	/**
+	 * Visits samples in order, see forEach
+	 */
+	public interface Visitor {
+		void sample(long time, double value);
+	}
+
+	private long[][] times=new long[4][];
+	private double[][] values=new double[4][];
+	private int chunks=0; // Chunks allocated, kept through clear for reuse
+	private int size=0;
+
+	/**
+	 * Appends a sample
+	 * @param time Milliseconds, not before the last sample's
+	 * @param value The sample
+	 */
+	public void add(long time, double value){
+		int c=size>>>CHUNK_BITS;
+		if(c==chunks){
+			if(chunks==times.length){
+				times=Arrays.copyOf(times, chunks*2);
+				values=Arrays.copyOf(values, chunks*2);
+			}
+			times[chunks]=new long[CHUNK];
+			values[chunks]=new double[CHUNK];
+			chunks++;
+		}
+		times[c][size&MASK]=time;
+		values[c][size&MASK]=value;
+		size++;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public boolean isEmpty(){
+		return size==0;
+	}
+
+	/**
+	 * Empties the series. The chunks are kept, so refilling it doesn't allocate.
+	 */
+	public void clear(){
+		size=0;
+	}
+
+	public double value(int i){
+		return values[i>>>CHUNK_BITS][i&MASK];
+	}
+
+	public long time(int i){
+		return times[i>>>CHUNK_BITS][i&MASK];
+	}
+
+	/**
+	 * The newest value, or ifEmpty if there are none
+	 */
+	public double last(double ifEmpty){
+		return size==0 ? ifEmpty : value(size-1);
+	}
+
+	/**
+	 * Time of the newest sample, or -1 if there are none
+	 */
+	public long lastTime(){
+		return size==0 ? -1 : time(size-1);
+	}
+
+	/**
+	 * Index of the first sample at or after a time
+	 * @return Between 0 and size, size if every sample is before time
+	 */
+	public int indexOf(long time){
+		int lo=0, hi=size;
+		while(lo<hi){
+			int mid=(lo+hi)>>>1;
+			if(time(mid)<time)lo=mid+1;
+			else hi=mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Copies values out of the series
+	 * @param from First index
+	 * @param to One past the last index
+	 * @param out Large enough for to-from values
+	 * @return The number copied
+	 */
+	public int copy(int from, int to, double[] out){
+		int n=0;
+		for(int i=from;i<to;){
+			int c=i>>>CHUNK_BITS;
+			int k=Math.min(to-i, CHUNK-(i&MASK));
+			System.arraycopy(values[c], i&MASK, out, n, k);
+			n+=k;
+			i+=k;
+		}
+		return n;
+	}
+
+	/**
+	 * Visits the samples with from <= time < to, oldest first
+	 */
+	public void forEach(long from, long to, Visitor visitor){
+		for(int i=indexOf(from);i<size;i++){
+			long t=time(i);
+			if(t>=to)break;
+			visitor.sample(t, value(i));
+		}
+	}
+
+	/**
+	 * Visits every sample, oldest first
+	 */
+	public void forEach(Visitor visitor){
+		for(int i=0;i<size;i++)visitor.sample(time(i), value(i));
+	}
+}
@@ -0,0 +1,35 @@
+package com.dataxign.mark.aasruckmarchpacer;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Entry point for the JMH benchmarks, run through the app:jmh Gradle task.
+ * Every run uses the same fork, warmup and heap settings so numbers can be compared between
+ * builds, and the GC profiler adds the allocation rate (gc.alloc.rate.norm is bytes per op).
+ *
+ * args[0] regex of benchmarks to run, args[1] optional JSON results file
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws RunnerException {
+        OptionsBuilder opts = new OptionsBuilder();
+        opts.include(args.length > 0 ? args[0] : ".*")
+                .forks(1)
+                .jvmArgs("-Xms1g", "-Xmx1g", "-XX:+UseParallelGC")
+                .warmupIterations(3)
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(5)
+                .measurementTime(TimeValue.seconds(1))
+                .addProfiler(GCProfiler.class);
+        if (args.length > 1) {
+            opts.resultFormat(ResultFormatType.JSON).result(args[1]);
+        }
+        Options o = opts.build();
+        new Runner(o).run();
+    }
+}
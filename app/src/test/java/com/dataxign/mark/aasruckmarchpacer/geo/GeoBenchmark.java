@@ -0,0 +1,84 @@
+package com.dataxign.mark.aasruckmarchpacer.geo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per fix conversions: lat/lon to UTM (full and with a local projection) and the speed
+ * and heading smoothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GeoBenchmark {
+
+    private double[] lats = new double[1024];
+    private double[] lons = new double[1024];
+    private double[] speeds = new double[1024];
+    private double[] headings = new double[1024];
+    private double[] eastings = new double[1024];
+    private double[] northings = new double[1024];
+    private LocationPoint point = new LocationPoint();
+    private DataSmoother smoother = new DataSmoother();
+    private LocalProjection local;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+        for (int i = 0; i < lats.length; i++) {
+            lats[i] = 36.62 + rnd.nextDouble() * 0.05;
+            lons[i] = -87.47 + rnd.nextDouble() * 0.05;
+            speeds[i] = 1.5 + rnd.nextGaussian() * 0.3;
+            headings[i] = rnd.nextDouble() * 360;
+        }
+        local = new LocalProjection(36.645, -87.445, DegreesToUTM.centralMeridian(-87.445), 4000);
+    }
+
+    @Benchmark
+    public double latLon2UTM() {
+        int i = next++ & 1023;
+        point.lat = lats[i];
+        point.lon = lons[i];
+        DegreesToUTM.latLon2UTM(point);
+        return point.easting + point.northing;
+    }
+
+    @Benchmark
+    public double latLon2UTMLocal() {
+        int i = next++ & 1023;
+        DegreesToUTM.setLocalProjection(local);
+        point.lat = lats[i];
+        point.lon = lons[i];
+        DegreesToUTM.latLon2UTM(point);
+        DegreesToUTM.setLocalProjection(null);
+        return point.easting + point.northing;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public double latLon2UTMBatch() {
+        DegreesToUTM.latLon2UTM(lats, lons, eastings, northings, lats.length);
+        return eastings[0];
+    }
+
+    @Benchmark
+    public double addSpeed() {
+        smoother.addSpeed(speeds[next++ & 1023]);
+        return smoother.getMovingAverageSpeed();
+    }
+
+    @Benchmark
+    public double addHeading() {
+        smoother.addHeading(headings[next++ & 1023]);
+        return smoother.getMovingAverageHeading();
+    }
+}
@@ -0,0 +1,96 @@
+package com.dataxign.mark.aasruckmarchpacer.geo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapping GPS fixes to routes of increasing length. The route is a seeded random walk near
+ * Ft. Campbell. snapToLine searches the whole route for fixes scattered anywhere along it
+ * with a few metres of noise, snapTracking follows fixes walking along it in order, and mapMatch
+ * feeds the same walk through the HMM map matcher.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RouteBenchmark {
+
+    private static final int FIXES = 1024;
+
+    @Param({"10", "1000", "100000"})
+    public int segments;
+
+    private Route route;
+    private LocationPoint[] fixes = new LocationPoint[FIXES];
+    private LocationPoint[] walk = new LocationPoint[FIXES];
+    private SnapResult snap = new SnapResult();
+    private MapMatcher matcher;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+        route = new Route();
+        double lat = 36.62;
+        double lon = -87.47;
+        double heading = 0;
+        LocationPoint last = new LocationPoint(lat, lon);
+        for (int i = 0; i < segments; i++) {
+            heading += rnd.nextGaussian() * 0.3;
+            // About 10m steps
+            lat += Math.cos(heading) * 0.00009;
+            lon += Math.sin(heading) * 0.00011;
+            LocationPoint p = new LocationPoint(lat, lon);
+            route.addSegment(new Segment(last, p));
+            last = p;
+        }
+        route.routeDefined = true;
+
+        for (int i = 0; i < FIXES; i++) {
+            Segment s = route.route.get(rnd.nextInt(segments));
+            double f = rnd.nextDouble();
+            fixes[i] = new LocationPoint(s.start.lat + f * (s.end.lat - s.start.lat) + rnd.nextGaussian() * 0.00002,
+                    s.start.lon + f * (s.end.lon - s.start.lon) + rnd.nextGaussian() * 0.00002);
+        }
+
+        // About 3 fixes per segment
+        for (int i = 0; i < FIXES; i++) {
+            Segment s = route.route.get((i / 3) % segments);
+            double f = (i % 3) / 3.0;
+            walk[i] = new LocationPoint(s.start.lat + f * (s.end.lat - s.start.lat) + rnd.nextGaussian() * 0.00002,
+                    s.start.lon + f * (s.end.lon - s.start.lon) + rnd.nextGaussian() * 0.00002);
+        }
+        matcher = new MapMatcher(route);
+    }
+
+    @Benchmark
+    public int snapToLine() {
+        route.tracking = false;
+        LocationPoint p = fixes[next++ & (FIXES - 1)];
+        route.snap(p.easting, p.northing, snap);
+        return snap.segment;
+    }
+
+    @Benchmark
+    public int snapTracking() {
+        route.tracking = true;
+        LocationPoint p = walk[next++ & (FIXES - 1)];
+        route.snap(p.easting, p.northing, snap);
+        return snap.segment;
+    }
+
+    @Benchmark
+    public int mapMatch() {
+        LocationPoint p = walk[next++ & (FIXES - 1)];
+        matcher.update(p.easting, p.northing, 1.0, snap);
+        return snap.segment;
+    }
+}
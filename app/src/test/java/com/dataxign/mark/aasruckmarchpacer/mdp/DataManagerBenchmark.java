@@ -0,0 +1,74 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import com.dataxign.mark.aasruckmarchpacer.functions.USARIEM;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per sample physiology path: the Kalman core temperature estimate, the sliding median
+ * over a window of samples, the Hampel outlier check and appending to a series.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DataManagerBenchmark {
+
+    @Param({"60", "600"})
+    public int samples;
+
+    private SlidingMedian median;
+    private HampelFilter hampel;
+    private TimeSeries series = new TimeSeries();
+    private double[] heartRates = new double[1024];
+    private KalmanState ks = new KalmanState();
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+        for (int i = 0; i < heartRates.length; i++) {
+            heartRates[i] = 100 + rnd.nextGaussian() * 15;
+        }
+        median = new SlidingMedian(samples);
+        hampel = new HampelFilter(samples, 3);
+        for (int i = 0; i < samples; i++) {
+            median.add(heartRates[i & 1023]);
+            hampel.accept(heartRates[i & 1023]);
+        }
+    }
+
+    @Benchmark
+    public double slidingMedian() {
+        median.add(heartRates[next++ & 1023]);
+        return median.median(-10);
+    }
+
+    @Benchmark
+    public boolean hampel() {
+        return hampel.accept(heartRates[next++ & 1023]);
+    }
+
+    @Benchmark
+    public double appendSeries() {
+        int i = next++;
+        // Refill a minute's worth of samples, like the raw series
+        if (series.size() == samples) series.clear();
+        series.add(i, heartRates[i & 1023]);
+        return series.last(-10);
+    }
+
+    @Benchmark
+    public double estimateTcore() {
+        return USARIEM.estimateTcore(heartRates[next++ & 1023], ks).currentTC;
+    }
+}
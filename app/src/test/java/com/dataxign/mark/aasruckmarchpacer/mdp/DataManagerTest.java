@@ -0,0 +1,50 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import com.dataxign.mark.aasruckmarchpacer.functions.ManualClock;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DataManagerTest {
+
+    // Feeds a second of samples each, spikes at the given seconds and steady heart rates around them
+    private static DataManager run(int seconds, int[] spikeAt, double spike) {
+        ManualClock clock = new ManualClock(1000000);
+        DataManager dm = new DataManager(new Policy(), clock);
+        dm.startSession();
+        Random rnd = new Random(9);
+        int next = 0;
+        for (int s = 0; s < seconds; s++) {
+            clock.advance(1000);
+            if (next < spikeAt.length && spikeAt[next] == s) {
+                dm.update(spike, 3);
+                next++;
+            }
+            dm.update(110 + rnd.nextInt(5) - 2, 3);
+        }
+        return dm;
+    }
+
+    @Test
+    public void rejectedSpikeDoesNotStepTheKalmanFilter() {
+        DataManager clean = run(150, new int[0], 0);
+        DataManager spiked = run(150, new int[]{40, 95}, 190);
+        assertEquals(clean.lastGoodTC, spiked.lastGoodTC, 0);
+        assertEquals(clean.getSeries(DataManager.RAWTC).size(), spiked.getSeries(DataManager.RAWTC).size());
+        assertEquals(clean.getCurrent(DataManager.E_TC), spiked.getCurrent(DataManager.E_TC), 0);
+        assertEquals(clean.getCurrent(DataManager.PSI), spiked.getCurrent(DataManager.PSI), 0);
+    }
+
+    @Test
+    public void outOfRangeHeartRateDoesNotStepTheKalmanFilter() {
+        DataManager clean = run(150, new int[0], 0);
+        DataManager dropped = run(150, new int[]{10, 20, 30, 70}, 0);
+        DataManager high = run(150, new int[]{10, 20, 30, 70}, 250);
+        assertEquals(clean.lastGoodTC, dropped.lastGoodTC, 0);
+        assertEquals(clean.lastGoodTC, high.lastGoodTC, 0);
+        assertEquals(clean.getCurrent(DataManager.E_TC), high.getCurrent(DataManager.E_TC), 0);
+    }
+}
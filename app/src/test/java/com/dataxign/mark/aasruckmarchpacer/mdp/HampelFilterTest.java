@@ -0,0 +1,48 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HampelFilterTest {
+
+    @Test
+    public void rejectsASpike() {
+        HampelFilter f = new HampelFilter(15, 3);
+        Random rnd = new Random(3);
+        for (int i = 0; i < 30; i++) {
+            assertTrue(f.accept(120 + rnd.nextInt(5) - 2));
+        }
+        assertFalse(f.accept(190));
+        assertTrue(f.accept(121));
+    }
+
+    @Test
+    public void acceptsASustainedLevelChange() {
+        HampelFilter f = new HampelFilter(15, 3);
+        for (int i = 0; i < 30; i++) f.accept(120 + (i % 3) - 1);
+        assertFalse(f.accept(160));
+
+        // A real change is taken once it has lasted about half the window
+        int rejected = 1;
+        boolean accepted = false;
+        for (int i = 0; i < 15 && !accepted; i++) {
+            accepted = f.accept(160 + (i % 3) - 1);
+            if (!accepted) rejected++;
+        }
+        assertTrue("level change never accepted", accepted);
+        assertTrue("accepted after " + rejected + " samples", rejected <= 8);
+        for (int i = 0; i < 20; i++) assertTrue(f.accept(160 + (i % 3) - 1));
+        assertEquals(160, f.median(0), 1);
+    }
+
+    @Test
+    public void acceptsEverythingBeforeMinSamples() {
+        HampelFilter f = new HampelFilter(15, 3);
+        for (int i = 0; i < f.minSamples; i++) {
+            assertTrue(f.accept(i % 2 == 0 ? 60 : 200));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Policy loading (CSV parse, compression, binary load) and the per tick getPolicy lookup.
+ * Uses the shipped policy_7_5_from_actual.csv, run from the app module directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class PolicyBenchmark {
+
+    private static final int LOOKUPS = 1024;
+
+    private byte[] csv;
+    private FlatPolicyTable flat;
+    private ByteBuffer binary;
+    private Policy policy;
+    private long[] times = new long[LOOKUPS];
+    private double[] distances = new double[LOOKUPS];
+    private double[] psis = new double[LOOKUPS];
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        csv = Files.readAllBytes(new File("src/main/res/raw/policy_7_5_from_actual.csv").toPath());
+        flat = PolicyCsvParser.parse(csv, csv.length, 30, 39, 900);
+        PolicyTable compact = RunLengthPolicyTable.compact(flat);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compact.write(out);
+        binary = ByteBuffer.wrap(out.toByteArray());
+        policy = new Policy(compact);
+
+        Random rnd = new Random(42);
+        for (int i = 0; i < LOOKUPS; i++) {
+            times[i] = (long) (rnd.nextDouble() * 60 * 60 * 1000);
+            distances[i] = rnd.nextDouble() * 6.0;
+            psis[i] = rnd.nextDouble() * 10.0;
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public FlatPolicyTable parseCsv() {
+        return PolicyCsvParser.parse(csv, csv.length, 30, 39, 900);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public PolicyTable compress() {
+        return RunLengthPolicyTable.compress(flat);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public PolicyTable loadBinary() throws IOException {
+        return PolicyTable.fromBuffer(binary);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public double getPolicy() {
+        int i = next++ & (LOOKUPS - 1);
+        return policy.getPolicy(times[i], distances[i], psis[i]);
+    }
+}
@@ -0,0 +1,33 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Solves a policy on a laptop, run through the app:solvePolicy Gradle task. Kept out of the app
+ * so the APK doesn't ship a command line entry point.
+ *
+ * Usage: PolicySolverMain output_file [goal miles] [psi limit]
+ */
+public class PolicySolverMain {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: PolicySolverMain output_file [goal miles] [psi limit]");
+            System.exit(1);
+        }
+        PolicySolver solver = new PolicySolver();
+        if (args.length > 1) solver.goalMiles = Double.parseDouble(args[1]);
+        if (args.length > 2) solver.psiLimit = Double.parseDouble(args[2]);
+        long startTime = System.currentTimeMillis();
+        PolicyTable table = solver.solve();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(args[0]));
+        try {
+            table.write(out);
+        } finally {
+            out.close();
+        }
+        System.out.println("Policy solved in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+}
@@ -0,0 +1,104 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PolicyTableTest {
+
+    // Runs of actions along distance, like a solved policy, with some noise
+    private static FlatPolicyTable sample(int t, int p, int d) {
+        FlatPolicyTable table = PolicyTable.allocate(t, p, d);
+        Random rnd = new Random(11);
+        for (int i = 0; i < t; i++) {
+            for (int j = 0; j < p; j++) {
+                int action = 1 + rnd.nextInt(Policy.NUMBER_OF_ACTIONS);
+                for (int k = 0; k < d; k++) {
+                    if (rnd.nextInt(20) == 0) action = rnd.nextInt(Policy.NUMBER_OF_ACTIONS + 1);
+                    table.set(i, j, k, action);
+                }
+            }
+        }
+        return table;
+    }
+
+    private static PolicyTable roundTrip(PolicyTable table) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        table.write(out);
+        return PolicyTable.fromBuffer(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    private static void assertSameCells(PolicyTable expected, PolicyTable actual) {
+        assertEquals(expected.numTimePeriods, actual.numTimePeriods);
+        assertEquals(expected.numPsis, actual.numPsis);
+        assertEquals(expected.numDistances, actual.numDistances);
+        assertEquals(expected.timePeriodMillis, actual.timePeriodMillis);
+        assertEquals(expected.psiMin, actual.psiMin, 0);
+        assertEquals(expected.psiStep, actual.psiStep, 0);
+        assertEquals(expected.distanceUnit, actual.distanceUnit, 0);
+        for (int i = 0; i < expected.numTimePeriods; i++)
+            for (int j = 0; j < expected.numPsis; j++)
+                for (int k = 0; k < expected.numDistances; k++)
+                    assertEquals("cell " + i + "," + j + "," + k, expected.get(i, j, k), actual.get(i, j, k));
+    }
+
+    @Test
+    public void flatRoundTrip() throws IOException {
+        FlatPolicyTable flat = sample(6, 9, 120);
+        PolicyTable read = roundTrip(flat);
+        assertTrue(read instanceof FlatPolicyTable);
+        assertSameCells(flat, read);
+    }
+
+    @Test
+    public void runLengthRoundTrip() throws IOException {
+        FlatPolicyTable flat = sample(6, 9, 120);
+        RunLengthPolicyTable rle = RunLengthPolicyTable.compress(flat);
+        assertSameCells(flat, rle);
+        PolicyTable read = roundTrip(rle);
+        assertTrue(read instanceof RunLengthPolicyTable);
+        assertSameCells(flat, read);
+    }
+
+    @Test
+    public void customGridRoundTrip() throws IOException {
+        FlatPolicyTable flat = PolicyTable.allocate(3, 4, 50, 60000, 1.0, 0.5, 0.01);
+        for (int k = 0; k < 50; k++) flat.set(1, 2, k, k % 7);
+        assertSameCells(flat, roundTrip(flat));
+        assertSameCells(flat, roundTrip(RunLengthPolicyTable.compress(flat)));
+    }
+
+    @Test
+    public void readsVersion1Files() throws IOException {
+        FlatPolicyTable flat = sample(4, 5, 60);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(PolicyTable.MAGIC);
+        out.writeInt(1);
+        out.writeInt(4);
+        out.writeInt(5);
+        out.writeInt(60);
+        for (int i = 0; i < 4; i++)
+            for (int j = 0; j < 5; j++)
+                for (int k = 0; k < 60; k++) out.writeByte(flat.get(i, j, k));
+        out.flush();
+        assertEquals(PolicyTable.HEADER_BYTES_V1 + 4 * 5 * 60, bytes.size());
+
+        PolicyTable read = PolicyTable.fromBuffer(ByteBuffer.wrap(bytes.toByteArray()));
+        assertSameCells(flat, read);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedFiles() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sample(2, 3, 40).write(out);
+        byte[] b = out.toByteArray();
+        PolicyTable.fromBuffer(ByteBuffer.wrap(b, 0, b.length - 10).slice());
+    }
+}
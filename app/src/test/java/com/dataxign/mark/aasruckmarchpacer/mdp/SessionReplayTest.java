@@ -0,0 +1,116 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import com.dataxign.mark.aasruckmarchpacer.geo.DegreesToUTM;
+import com.dataxign.mark.aasruckmarchpacer.geo.Route;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SessionReplayTest {
+
+    private static final long START = 1700000000000L;
+    private static final int SECONDS = 25 * 60;
+
+    private PolicyTable table;
+    private String csv;
+    private File journalFile;
+
+    // Five points heading north, about 440 m apart
+    private static Route route() {
+        StringBuilder sb = new StringBuilder("Test Route,,,\nPoint,Lat,Lon,Description,Altitude\n");
+        for (int i = 0; i < 5; i++) {
+            sb.append(i + 1).append(',').append(36.600 + 0.004 * i).append(",-87.470,,").append(150 + 3 * i).append('\n');
+        }
+        Route r = new Route();
+        r.generateRouteFromFile(new BufferedReader(new StringReader(sb.toString())));
+        return r;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        table = PolicyCsvParser.parse(Files.newInputStream(new File("src/main/res/raw/policy_7_5_from_actual.csv").toPath()), 30, 39, 900);
+
+        // A fix and HR sample a second, walking the route at 3 mph with GPS noise, a rising
+        // heart rate and the odd spike
+        Random rnd = new Random(5);
+        StringBuilder sb = new StringBuilder("time,lat,lon,mph,hr\n");
+        double lat = 36.600;
+        for (int s = 0; s < SECONDS; s++) {
+            lat += 3 * 0.44704 / 111000.0;
+            double mph = 3 + rnd.nextGaussian() * 0.2;
+            double hr = 90 + 50.0 * s / SECONDS + rnd.nextGaussian() * 2;
+            if (s % 97 == 0) hr += 60;
+            sb.append(START + s * 1000L).append(',')
+                    .append(lat + rnd.nextGaussian() * 0.00003).append(',')
+                    .append(-87.470 + rnd.nextGaussian() * 0.00003).append(',')
+                    .append(mph).append(',').append(hr).append('\n');
+        }
+        csv = sb.toString();
+        journalFile = File.createTempFile("replay", ".journal");
+        journalFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        journalFile.delete();
+        DegreesToUTM.setLocalProjection(null);
+    }
+
+    private SessionReplay replayCsv() throws IOException {
+        SessionReplay replay = new SessionReplay(new Policy(table), route());
+        replay.replayCsv(new ByteArrayInputStream(csv.getBytes("UTF-8")));
+        return replay;
+    }
+
+    @Test
+    public void csvReplayIsRepeatable() throws IOException {
+        SessionReplay first = replayCsv();
+        SessionReplay second = replayCsv();
+        assertEquals(first.digest(), second.digest());
+        assertTrue("no distance covered", first.dm.distanceCompleted > 0.5);
+        assertTrue("no minutes smoothed", first.dm.getSeries(DataManager.HR).size() > 20);
+    }
+
+    @Test
+    public void journalReplayMatchesCsv() throws IOException {
+        // Journal the same session the way the app does, a fix then a sample each tick
+        SessionJournal journal = new SessionJournal(journalFile, START);
+        String[] rows = csv.split("\n");
+        for (int i = 1; i < rows.length; i++) {
+            String[] f = rows[i].split(",");
+            long t = Long.parseLong(f[0]);
+            double mph = Double.parseDouble(f[3]);
+            journal.append(t, SessionJournal.FIX, Double.parseDouble(f[1]), Double.parseDouble(f[2]), mph, 0);
+            journal.append(t, SessionJournal.SAMPLE, Double.parseDouble(f[4]), mph, 0, 0);
+        }
+        journal.close();
+
+        SessionJournal read = SessionJournal.openForReading(journalFile);
+        SessionReplay fromJournal = new SessionReplay(new Policy(table), route());
+        try {
+            fromJournal.replay(read);
+        } finally {
+            read.close();
+        }
+        assertEquals(replayCsv().digest(), fromJournal.digest());
+    }
+
+    @Test
+    public void replayIgnoresTheInstalledProjection() throws IOException {
+        DegreesToUTM.setLocalProjection(null);
+        long without = replayCsv().digest();
+        DegreesToUTM.setLocalProjection(route().localProjection(50000));
+        assertEquals(without, replayCsv().digest());
+    }
+}
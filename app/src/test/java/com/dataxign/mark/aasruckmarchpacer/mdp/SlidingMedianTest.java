@@ -0,0 +1,55 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SlidingMedianTest {
+
+    // Median of the last window values by sorting, what SlidingMedian should agree with
+    private static double bruteMedian(double[] values, int end, int window) {
+        int from = Math.max(0, end - window);
+        double[] w = Arrays.copyOfRange(values, from, end);
+        Arrays.sort(w);
+        int n = w.length;
+        return (n & 1) == 1 ? w[n / 2] : 0.5 * (w[n / 2 - 1] + w[n / 2]);
+    }
+
+    @Test
+    public void matchesSortedMedianOverMixedAndTiedSamples() {
+        Random rnd = new Random(7);
+        int[] windows = {1, 2, 15, 128};
+        for (int window : windows) {
+            SlidingMedian m = new SlidingMedian(window);
+            double[] values = new double[20000];
+            for (int i = 0; i < values.length; i++) {
+                // Mix continuous values, runs of ties and a few large outliers
+                int kind = rnd.nextInt(10);
+                if (kind < 4) values[i] = rnd.nextGaussian() * 10 + 100;
+                else if (kind < 9) values[i] = 90 + rnd.nextInt(5);
+                else values[i] = rnd.nextBoolean() ? 250 : -50;
+                m.add(values[i]);
+                assertEquals("window " + window + " sample " + i,
+                        bruteMedian(values, i + 1, window), m.median(-1), 0);
+                assertEquals(Math.min(i + 1, window), m.size());
+            }
+        }
+    }
+
+    @Test
+    public void emptyAndCleared() {
+        SlidingMedian m = new SlidingMedian(8);
+        assertEquals(-10, m.median(-10), 0);
+        m.add(3);
+        m.add(5);
+        assertEquals(4, m.median(-10), 0);
+        m.clear();
+        assertEquals(0, m.size());
+        assertEquals(-10, m.median(-10), 0);
+        m.add(7);
+        assertEquals(7, m.median(-10), 0);
+    }
+}
@@ -0,0 +1,65 @@
+package com.dataxign.mark.aasruckmarchpacer.mdp;
+
+import com.dataxign.mark.aasruckmarchpacer.functions.ManualClock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Team mode sensor readings for squads of increasing size. Each reading comes from the next
+ * soldier in turn and the clock moves a second per round, so the minute and guidance steps
+ * are included at their real rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SquadBenchmark {
+
+    @Param({"4", "40", "400"})
+    public int soldiers;
+
+    private SquadMonitor squad;
+    private ManualClock clock = new ManualClock(0);
+    private int[] rosters;
+    private double[] heartRates = new double[1024];
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+        squad = new SquadMonitor(clock);
+        rosters = new int[soldiers];
+        for (int i = 0; i < soldiers; i++) {
+            rosters[i] = 1000 + rnd.nextInt(60000);
+        }
+        for (int i = 0; i < heartRates.length; i++) {
+            heartRates[i] = 120 + rnd.nextGaussian() * 10;
+        }
+        for (int i = 0; i < soldiers; i++) {
+            squad.onSample(rosters[i], heartRates[i & 1023], 37.5);
+        }
+    }
+
+    @Benchmark
+    public int onSample() {
+        int i = next++;
+        int s = i % soldiers;
+        if (s == 0) clock.advance(1000);
+        squad.onSample(rosters[s], heartRates[i & 1023], 37.5);
+        return s;
+    }
+
+    @Benchmark
+    public int ranked() {
+        return squad.ranked().length;
+    }
+}